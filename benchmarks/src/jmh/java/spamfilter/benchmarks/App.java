@@ -0,0 +1,447 @@
+package spamfilter.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Random;
+
+// The application lives in the default package. Code in a named package
+// cannot refer to it, and JMH will not generate benchmarks in the default
+// package. These handles bind to the application classes once. Held in
+// static finals they are constants to the JIT, so a call through them
+// inlines like a direct call.
+final class App {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private static final Class<?> EMAIL = load("Email");
+    private static final Class<?> CLASSIFIER = load("EmailClassifier");
+    private static final Class<?> MODEL = load("ClassifierModel");
+    private static final Class<?> FEATURE_SCORER = load("FeatureScorer");
+    private static final Class<?> PREPROCESSOR = load("DataPreprocessor");
+    private static final Class<?> CORPUS = load("SyntheticCorpus");
+    private static final Class<?> ENCODED_EMAIL = load("EncodedEmail");
+    private static final Class<?> MATCHER = load("AhoCorasickMatcher");
+    private static final Class<?> SCANNER = load("SpamPatternScanner");
+    private static final Class<?> CSV_READER = load("CsvReader");
+    private static final Class<?> STREAMING_SCORER = load("StreamingScorer");
+
+    private static final MethodHandle NEW_EMAIL = constructor(EMAIL, String.class, String.class, String.class);
+    private static final MethodHandle EMAIL_BODY = virtual(EMAIL, "getBody", String.class);
+    private static final MethodHandle EMAIL_SUBJECT = virtual(EMAIL, "getSubject", String.class);
+    private static final MethodHandle EMAIL_SENDER = virtual(EMAIL, "getSender", String.class);
+    private static final MethodHandle NEW_CLASSIFIER = constructor(CLASSIFIER, String.class);
+    private static final MethodHandle CLASSIFY = virtual(CLASSIFIER, "classifyEmail", double.class, EMAIL);
+    private static final MethodHandle CURRENT_MODEL = virtual(CLASSIFIER, "currentModel", MODEL);
+    private static final MethodHandle MODEL_SCORE = virtual(MODEL, "scoreEmail", int.class, EMAIL);
+    private static final MethodHandle LEARN = virtual(CLASSIFIER, "learn", void.class, EMAIL, boolean.class);
+    private static final MethodHandle MODEL_VERSION = virtual(MODEL, "version", long.class);
+    private static final MethodHandle MODEL_PROBABILITY = virtual(MODEL, "spamProbability", double.class, EMAIL);
+    private static final MethodHandle MODEL_IS_SPAM = virtual(MODEL, "isSpam", boolean.class, EMAIL);
+    private static final MethodHandle MODEL_SCORE_TEXT =
+        virtual(MODEL, "scoreEmail", int.class, CharSequence.class, CharSequence.class);
+    private static final MethodHandle CLASSIFY_WITH = virtual(CLASSIFIER, "classifyEmail", double.class, EMAIL, FEATURE_SCORER);
+    private static final MethodHandle NEW_PREPROCESSOR = constructor(PREPROCESSOR);
+    private static final MethodHandle CLEAN_TEXT = virtual(PREPROCESSOR, "cleanText", String.class, String.class);
+    private static final MethodHandle CORPUS_FROM_CSV = staticMethod(CORPUS, "fromCsv", CORPUS, String.class);
+    private static final MethodHandle CORPUS_NEXT = virtual(CORPUS, "next", EMAIL, Random.class, boolean.class);
+    private static final MethodHandle CORPUS_WRITE = virtual(CORPUS, "write", void.class, Path.class, int.class, long.class);
+    private static final MethodHandle ENCODE = staticMethod(ENCODED_EMAIL, "encode", ByteBuffer.class, EMAIL);
+    private static final MethodHandle WRAP = staticMethod(ENCODED_EMAIL, "wrap", ENCODED_EMAIL, ByteBuffer.class);
+    private static final MethodHandle ENCODED_TO_EMAIL = virtual(ENCODED_EMAIL, "toEmail", EMAIL);
+    private static final MethodHandle ENCODED_SUBJECT = virtual(ENCODED_EMAIL, "subject", CharSequence.class);
+    private static final MethodHandle ENCODED_BODY = virtual(ENCODED_EMAIL, "body", CharSequence.class);
+    private static final MethodHandle NEW_MATCHER = constructor(MATCHER, Iterable.class);
+    private static final MethodHandle COUNT_MATCHES = virtual(MATCHER, "countMatches", int.class, CharSequence.class);
+    private static final MethodHandle SCAN = staticMethod(SCANNER, "scan", int.class, CharSequence.class);
+    private static final MethodHandle HAS_DOLLAR_AMOUNT = staticMethod(SCANNER, "hasDollarAmount", boolean.class, int.class);
+    private static final MethodHandle HAS_MULTIPLE_EXCLAMATION =
+        staticMethod(SCANNER, "hasMultipleExclamation", boolean.class, int.class);
+    private static final MethodHandle NEW_CSV_READER = constructor(CSV_READER, Reader.class);
+    private static final MethodHandle CSV_NEXT_RECORD = virtual(CSV_READER, "nextRecord", boolean.class);
+    private static final MethodHandle CSV_FIELD_COUNT = virtual(CSV_READER, "fieldCount", int.class);
+    private static final MethodHandle CSV_FIELD = virtual(CSV_READER, "field", CharSequence.class, int.class);
+    private static final MethodHandle NEW_STREAMING_SCORER = constructor(STREAMING_SCORER, MODEL);
+    private static final MethodHandle STREAM_SCORE_READER =
+        virtual(STREAMING_SCORER, "score", int.class, CharSequence.class, Reader.class, long.class);
+    private static final MethodHandle STREAM_SCORE_BYTES =
+        virtual(STREAMING_SCORER, "score", int.class, CharSequence.class, ByteBuffer.class, Charset.class, long.class);
+
+    static final int HAS_LETTER = staticInt(SCANNER, "HAS_LETTER");
+
+    static final Object NAIVE_BAYES = engine("NAIVE_BAYES");
+
+    private App() {
+    }
+
+    static String trainingData() {
+        return System.getProperty("spamfilter.trainingData", "data/training_data.csv");
+    }
+
+    static Object newEmail(String sender, String subject, String body) {
+        try {
+            return (Object) NEW_EMAIL.invokeExact(sender, subject, body);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static String sender(Object email) {
+        try {
+            return (String) EMAIL_SENDER.invokeExact(email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static String subject(Object email) {
+        try {
+            return (String) EMAIL_SUBJECT.invokeExact(email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static String body(Object email) {
+        try {
+            return (String) EMAIL_BODY.invokeExact(email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object newClassifier(String trainingDataPath) {
+        try {
+            return (Object) NEW_CLASSIFIER.invokeExact(trainingDataPath);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static double classify(Object classifier, Object email) {
+        try {
+            return (double) CLASSIFY.invokeExact(classifier, email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static double classify(Object classifier, Object email, Object scorer) {
+        try {
+            return (double) CLASSIFY_WITH.invokeExact(classifier, email, scorer);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object currentModel(Object classifier) {
+        try {
+            return (Object) CURRENT_MODEL.invokeExact(classifier);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static void learn(Object classifier, Object email, boolean spam) {
+        try {
+            LEARN.invokeExact(classifier, email, spam);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static long version(Object model) {
+        try {
+            return (long) MODEL_VERSION.invokeExact(model);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static double spamProbability(Object model, Object email) {
+        try {
+            return (double) MODEL_PROBABILITY.invokeExact(model, email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int scoreEmail(Object model, Object email) {
+        try {
+            return (int) MODEL_SCORE.invokeExact(model, email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static boolean isSpam(Object model, Object email) {
+        try {
+            return (boolean) MODEL_IS_SPAM.invokeExact(model, email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int scoreEmail(Object model, CharSequence subject, CharSequence body) {
+        try {
+            return (int) MODEL_SCORE_TEXT.invokeExact(model, subject, body);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static ByteBuffer encode(Object email) {
+        try {
+            return (ByteBuffer) ENCODE.invokeExact(email);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object wrapEncoded(ByteBuffer record) {
+        try {
+            return (Object) WRAP.invokeExact(record);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object toEmail(Object encoded) {
+        try {
+            return (Object) ENCODED_TO_EMAIL.invokeExact(encoded);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static CharSequence encodedSubject(Object encoded) {
+        try {
+            return (CharSequence) ENCODED_SUBJECT.invokeExact(encoded);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static CharSequence encodedBody(Object encoded) {
+        try {
+            return (CharSequence) ENCODED_BODY.invokeExact(encoded);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object newPreprocessor() {
+        try {
+            return (Object) NEW_PREPROCESSOR.invokeExact();
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static String cleanText(Object preprocessor, String text) {
+        try {
+            return (String) CLEAN_TEXT.invokeExact(preprocessor, text);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object corpus(String sourcePath) {
+        try {
+            return (Object) CORPUS_FROM_CSV.invokeExact(sourcePath);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object nextEmail(Object corpus, Random random, boolean spam) {
+        try {
+            return (Object) CORPUS_NEXT.invokeExact(corpus, random, spam);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static void writeCorpus(Object corpus, Path output, int rows, long seed) {
+        try {
+            CORPUS_WRITE.invokeExact(corpus, output, rows, seed);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object newMatcher(Iterable<? extends CharSequence> patterns) {
+        try {
+            return (Object) NEW_MATCHER.invokeExact((Iterable<?>) patterns);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int countMatches(Object matcher, CharSequence text) {
+        try {
+            return (int) COUNT_MATCHES.invokeExact(matcher, text);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int scan(CharSequence text) {
+        try {
+            return (int) SCAN.invokeExact(text);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static boolean hasDollarAmount(int flags) {
+        try {
+            return (boolean) HAS_DOLLAR_AMOUNT.invokeExact(flags);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static boolean hasMultipleExclamation(int flags) {
+        try {
+            return (boolean) HAS_MULTIPLE_EXCLAMATION.invokeExact(flags);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    // The reader is Closeable; close it with ((AutoCloseable) reader).close()
+    static Object newCsvReader(Reader reader) {
+        try {
+            return (Object) NEW_CSV_READER.invokeExact(reader);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static boolean nextRecord(Object reader) {
+        try {
+            return (boolean) CSV_NEXT_RECORD.invokeExact(reader);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int fieldCount(Object reader) {
+        try {
+            return (int) CSV_FIELD_COUNT.invokeExact(reader);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static CharSequence field(Object reader, int index) {
+        try {
+            return (CharSequence) CSV_FIELD.invokeExact(reader, index);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static Object newStreamingScorer(Object model) {
+        try {
+            return (Object) NEW_STREAMING_SCORER.invokeExact(model);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int streamScore(Object scorer, CharSequence subject, Reader body, long limit) {
+        try {
+            return (int) STREAM_SCORE_READER.invokeExact(scorer, subject, body, limit);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    static int streamScore(Object scorer, CharSequence subject, ByteBuffer body, Charset charset, long limit) {
+        try {
+            return (int) STREAM_SCORE_BYTES.invokeExact(scorer, subject, body, charset, limit);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Application class " + name + " is not on the classpath", e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object engine(String name) {
+        return Enum.valueOf((Class) load("ScoringEngine"), name);
+    }
+
+    // Handles are adapted to Object receivers and arguments so the typed
+    // wrappers above can call them with invokeExact
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findConstructor(type, MethodType.methodType(void.class, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findVirtual(type, name, MethodType.methodType(returnType, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findStatic(type, name, MethodType.methodType(returnType, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int staticInt(Class<?> type, String name) {
+        try {
+            return (int) LOOKUP.findStaticGetter(type, name, int.class).invokeExact();
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    // Replaces application types with Object; JDK types are kept
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isApplicationType(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isApplicationType(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isApplicationType(Class<?> type) {
+        return !type.isPrimitive() && type.getPackageName().isEmpty();
+    }
+
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+}
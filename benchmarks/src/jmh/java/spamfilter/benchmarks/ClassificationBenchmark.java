@@ -0,0 +1,86 @@
+package spamfilter.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// classifyEmail with the rules and with Naive Bayes on four kinds of message,
+// all drawn from the training data's distribution:
+//   short  - spam or ham cut to the first 8 body words
+//   long   - 50 messages of both classes joined into one body (a few KB)
+//   spammy - spam messages
+//   clean  - ham messages
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClassificationBenchmark {
+    private static final int MESSAGES = 64;
+
+    @Param({"short", "long", "spammy", "clean"})
+    public String kind;
+
+    private Object classifier;
+    private final Object[] emails = new Object[MESSAGES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            classifier = App.newClassifier(App.trainingData());
+        } finally {
+            System.setOut(stdout);
+        }
+
+        Object corpus = App.corpus(App.trainingData());
+        Random random = new Random(42);
+        for (int i = 0; i < MESSAGES; i++) {
+            emails[i] = message(corpus, random);
+        }
+    }
+
+    private Object message(Object corpus, Random random) {
+        switch (kind) {
+            case "short": {
+                Object email = App.nextEmail(corpus, random, random.nextBoolean());
+                String[] words = App.body(email).split(" ");
+                String body = String.join(" ", java.util.Arrays.copyOf(words, Math.min(8, words.length)));
+                return App.newEmail(App.sender(email), App.subject(email), body);
+            }
+            case "long": {
+                Object first = App.nextEmail(corpus, random, random.nextBoolean());
+                StringBuilder body = new StringBuilder(App.body(first));
+                for (int i = 1; i < 50; i++) {
+                    body.append('\n').append(App.body(App.nextEmail(corpus, random, random.nextBoolean())));
+                }
+                return App.newEmail(App.sender(first), App.subject(first), body.toString());
+            }
+            case "spammy":
+                return App.nextEmail(corpus, random, true);
+            case "clean":
+                return App.nextEmail(corpus, random, false);
+            default:
+                throw new IllegalArgumentException("Unknown message kind: " + kind);
+        }
+    }
+
+    @Benchmark
+    public double rules() {
+        return App.classify(classifier, emails[next++ & (MESSAGES - 1)]);
+    }
+
+    @Benchmark
+    public double naiveBayes() {
+        return App.classify(classifier, emails[next++ & (MESSAGES - 1)], App.NAIVE_BAYES);
+    }
+}
@@ -0,0 +1,140 @@
+package spamfilter.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Reading a whole CSV file of long quoted bodies (embedded commas, doubled
+// quotes and line breaks) with CsvReader, against the lookahead regex line
+// split the loader used before. The regex cannot see multi-line records, so
+// it only measures the cost. Setup checks that CsvReader reads back every
+// field exactly as written.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CsvReaderBenchmark {
+    private static final long SEED = 42;
+    private static final String[] WORDS = {
+        "free", "offer", "account", "money", "click", "meeting", "project", "review",
+        "winner", "prize", "urgent", "verify", "bank", "credit", "report", "schedule"
+    };
+
+    @Param({"2000"})
+    public int records;
+
+    @Param({"20", "2000"})
+    public int bodyWords;
+
+    private Path file;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = Files.createTempFile("csv-benchmark", ".csv");
+        Random random = new Random(SEED);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("body,sender,subject,class\r\n");
+            for (int i = 0; i < records; i++) {
+                String[] fields = record(random, i);
+                for (int f = 0; f < fields.length; f++) {
+                    if (f > 0) {
+                        out.write(',');
+                    }
+                    out.write('"');
+                    out.write(fields[f].replace("\"", "\"\""));
+                    out.write('"');
+                }
+                out.write("\r\n");
+            }
+        }
+        verify();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long csvReader() throws Exception {
+        long fields = 0;
+        Object reader = App.newCsvReader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+        try {
+            while (App.nextRecord(reader)) {
+                fields += App.fieldCount(reader);
+            }
+        } finally {
+            ((AutoCloseable) reader).close();
+        }
+        return fields;
+    }
+
+    @Benchmark
+    public long regexLineSplit() throws IOException {
+        long fields = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                fields += line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)", -1).length;
+            }
+        }
+        return fields;
+    }
+
+    // Every field must round-trip exactly
+    private void verify() throws Exception {
+        Random random = new Random(SEED);
+        Object reader = App.newCsvReader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+        try {
+            App.nextRecord(reader);
+            int count = 0;
+            while (App.nextRecord(reader)) {
+                String[] expected = record(random, count);
+                if (App.fieldCount(reader) != expected.length) {
+                    throw new IllegalStateException("Record " + count + ": expected "
+                        + expected.length + " fields, got " + App.fieldCount(reader));
+                }
+                for (int i = 0; i < expected.length; i++) {
+                    if (!expected[i].contentEquals(App.field(reader, i))) {
+                        throw new IllegalStateException("Record " + count + " field " + i + " differs");
+                    }
+                }
+                count++;
+            }
+            if (count != records) {
+                throw new IllegalStateException("Expected " + records + " records, read " + count);
+            }
+        } finally {
+            ((AutoCloseable) reader).close();
+        }
+    }
+
+    private String[] record(Random random, int index) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < bodyWords; i++) {
+            body.append(WORDS[random.nextInt(WORDS.length)]);
+            int separator = random.nextInt(20);
+            body.append(separator == 0 ? ", " : separator == 1 ? "\n" : separator == 2 ? " \"quoted\" " : " ");
+        }
+        boolean spam = random.nextBoolean();
+        return new String[] {
+            body.toString(),
+            "sender" + index + "@example.com",
+            WORDS[random.nextInt(WORDS.length)] + ", \"" + WORDS[random.nextInt(WORDS.length)] + "\"",
+            spam ? "spam" : "ham"
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package spamfilter.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Rule verdicts from the full score against the early-exit scorer, on
+// message mixes that are 90% spam or 90% ham. Each body joins
+// bodyMessages bodies of its class, so longer mails show how much of the
+// body scan the early exit skips.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EarlyExitBenchmark {
+    private static final int MESSAGES = 256;
+    private static final int THRESHOLD = 6;
+
+    @Param({"spam-heavy", "ham-heavy"})
+    public String mix;
+
+    @Param({"1", "20"})
+    public int bodyMessages;
+
+    private Object model;
+    private final Object[] emails = new Object[MESSAGES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            model = App.currentModel(App.newClassifier(App.trainingData()));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        double spamFraction = mix.equals("spam-heavy") ? 0.9 : 0.1;
+        Object corpus = App.corpus(App.trainingData());
+        Random random = new Random(42);
+        for (int i = 0; i < MESSAGES; i++) {
+            boolean spam = random.nextDouble() < spamFraction;
+            Object first = App.nextEmail(corpus, random, spam);
+            StringBuilder body = new StringBuilder(App.body(first));
+            for (int j = 1; j < bodyMessages; j++) {
+                body.append('\n').append(App.body(App.nextEmail(corpus, random, spam)));
+            }
+            emails[i] = App.newEmail(App.sender(first), App.subject(first), body.toString());
+        }
+    }
+
+    @Benchmark
+    public boolean fullScore() {
+        return App.scoreEmail(model, emails[next++ & (MESSAGES - 1)]) >= THRESHOLD;
+    }
+
+    @Benchmark
+    public boolean earlyExit() {
+        return App.isSpam(model, emails[next++ & (MESSAGES - 1)]);
+    }
+}
@@ -0,0 +1,86 @@
+package spamfilter.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// EncodedEmail against default Java serialization for messages queued
+// between stages, and rule scoring straight from the encoded buffer
+// against scoring the Email it came from
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EmailEncodingBenchmark {
+    private static final int MESSAGES = 64;
+
+    private Object model;
+    private final Object[] emails = new Object[MESSAGES];
+    private final ByteBuffer[] encoded = new ByteBuffer[MESSAGES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            model = App.currentModel(App.newClassifier(App.trainingData()));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        Object corpus = App.corpus(App.trainingData());
+        Random random = new Random(42);
+        for (int i = 0; i < MESSAGES; i++) {
+            emails[i] = App.nextEmail(corpus, random, random.nextBoolean());
+            encoded[i] = App.encode(emails[i]);
+        }
+    }
+
+    @Benchmark
+    public Object encodedRoundTrip() {
+        return App.toEmail(App.wrapEncoded(App.encode(emails[next++ & (MESSAGES - 1)])));
+    }
+
+    @Benchmark
+    public Object serializedRoundTrip() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(emails[next++ & (MESSAGES - 1)]);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return in.readObject();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public int scoreEmail() {
+        return App.scoreEmail(model, emails[next++ & (MESSAGES - 1)]);
+    }
+
+    @Benchmark
+    public int scoreEncoded() {
+        Object email = App.wrapEncoded(encoded[next++ & (MESSAGES - 1)].duplicate());
+        return App.scoreEmail(model, App.encodedSubject(email), App.encodedBody(email));
+    }
+}
@@ -0,0 +1,104 @@
+package spamfilter.benchmarks;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Counting the keywords of vocabularies of 100 to 1,000,000 entries in a
+// 200-word body: one AhoCorasickMatcher pass against a String.contains()
+// per keyword, the way keywords were matched before
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeywordMatcherBenchmark {
+    private static final int BODIES = 64;
+    private static final String[] WORDS = {
+        "free", "offer", "account", "money", "click", "meeting", "project", "review",
+        "winner", "prize", "urgent", "verify", "bank", "credit", "report", "schedule",
+        "discount", "today", "team", "update", "invoice", "payment", "limited", "deal"
+    };
+
+    @Param({"100", "10000", "1000000"})
+    public int keywords;
+
+    private Set<String> vocabulary;
+    private Object matcher;
+    private final String[] bodies = new String[BODIES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < BODIES; i++) {
+            bodies[i] = randomText(random, 200);
+        }
+        vocabulary = randomKeywords(random, keywords);
+        matcher = App.newMatcher(vocabulary);
+
+        // Both strategies must agree before they are timed
+        for (String body : bodies) {
+            if (containsCount(body) != App.countMatches(matcher, body)) {
+                throw new IllegalStateException("Match count mismatch for: " + body);
+            }
+        }
+    }
+
+    @Benchmark
+    public int ahoCorasick() {
+        return App.countMatches(matcher, bodies[next++ & (BODIES - 1)]);
+    }
+
+    @Benchmark
+    public int contains() {
+        return containsCount(bodies[next++ & (BODIES - 1)]);
+    }
+
+    private int containsCount(String body) {
+        int count = 0;
+        for (String keyword : vocabulary) {
+            if (body.contains(keyword)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // The listed words first, then random lower-case words of 4 to 11 letters
+    private static Set<String> randomKeywords(Random random, int size) {
+        Set<String> keywords = new LinkedHashSet<>();
+        for (String word : WORDS) {
+            if (keywords.size() < size) {
+                keywords.add(word);
+            }
+        }
+        while (keywords.size() < size) {
+            int length = 4 + random.nextInt(8);
+            StringBuilder word = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            keywords.add(word.toString());
+        }
+        return keywords;
+    }
+
+    private static String randomText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package spamfilter.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Scores a multi-megabyte body read from a file, once as a whole String and
+// once streamed through StreamingScorer from a Reader, a mapped file and a
+// Reader capped at 64 KB. Run with -PjmhProfilers=gc to see that streaming
+// allocation stays flat as the body grows. Setup checks that the uncapped
+// streaming paths give the same score as the String path.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LargeBodyBenchmark {
+    private static final String SUBJECT = "Our monthly newsletter";
+    private static final long NO_LIMIT = Long.MAX_VALUE;
+    private static final String[] WORDS = {
+        "<p>", "</p>", "<a href=\"https://example.com/track?id=12345\">", "</a>", "the", "latest", "news",
+        "from", "our", "team", "read", "more", "about", "events", "this", "month", "and", "upcoming",
+        "releases", "please", "unsubscribe", "if", "you", "no", "longer", "wish", "to", "receive", "updates"
+    };
+
+    @Param({"1", "10", "50"})
+    public int megabytes;
+
+    private Object model;
+    private Object streaming;
+    private Path body;
+
+    @Setup
+    public void setUp() throws IOException {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            model = App.currentModel(App.newClassifier(App.trainingData()));
+        } finally {
+            System.setOut(stdout);
+        }
+        streaming = App.newStreamingScorer(model);
+
+        body = Files.createTempFile("large-body", ".txt");
+        Random random = new Random(42);
+        long written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(body, StandardCharsets.UTF_8)) {
+            while (written < (long) megabytes << 20) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                out.write(word);
+                out.write(' ');
+                written += word.length() + 1;
+            }
+        }
+
+        int expected = string();
+        if (reader() != expected || mapped() != expected) {
+            throw new IllegalStateException("Streaming score differs from the String score " + expected);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(body);
+    }
+
+    @Benchmark
+    public int string() throws IOException {
+        return App.scoreEmail(model, App.newEmail("", SUBJECT, Files.readString(body)));
+    }
+
+    @Benchmark
+    public int reader() throws IOException {
+        try (Reader reader = Files.newBufferedReader(body)) {
+            return App.streamScore(streaming, SUBJECT, reader, NO_LIMIT);
+        }
+    }
+
+    @Benchmark
+    public int mapped() throws IOException {
+        try (FileChannel channel = FileChannel.open(body)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return App.streamScore(streaming, SUBJECT, bytes, StandardCharsets.UTF_8, NO_LIMIT);
+        }
+    }
+
+    @Benchmark
+    public int readerCapped() throws IOException {
+        try (Reader reader = Files.newBufferedReader(body)) {
+            return App.streamScore(streaming, SUBJECT, reader, 64 << 10);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package spamfilter.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// One thread feeds learn() while three classify with whatever model is
+// published, as the GUI does while a user marks messages. Reports the cost
+// of a correction and of a classification under that load. Readers fail
+// the run if a model version goes backwards or a result is out of range.
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OnlineLearningBenchmark {
+    // Corrections cycle through this many distinct messages, so the
+    // vocabulary stops growing after a while
+    private static final int CORRECTIONS = 1024;
+
+    private Object classifier;
+    private final Object[] corrections = new Object[CORRECTIONS];
+    private Object probe;
+    private int next;
+
+    @State(Scope.Thread)
+    public static class Reader {
+        private long lastVersion = -1;
+    }
+
+    @Setup
+    public void setUp() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            classifier = App.newClassifier(App.trainingData());
+        } finally {
+            System.setOut(stdout);
+        }
+        for (int i = 0; i < CORRECTIONS; i++) {
+            corrections[i] = App.newEmail("user" + i + "@example.com", "Exclusive zorblax offer " + i,
+                "Buy zorblax today and get a zorblax bonus number " + i);
+        }
+        probe = App.newEmail("promo@deals.example", "Exclusive zorblax offer",
+            "Buy zorblax today and get a zorblax bonus");
+    }
+
+    @Benchmark
+    @Group("learnWhileScoring")
+    @GroupThreads(1)
+    public void learn() {
+        int i = next++ & (CORRECTIONS - 1);
+        App.learn(classifier, corrections[i], i % 4 != 0);
+    }
+
+    @Benchmark
+    @Group("learnWhileScoring")
+    @GroupThreads(3)
+    public double classify(Reader reader) {
+        Object model = App.currentModel(classifier);
+        int score = App.scoreEmail(model, probe);
+        double probability = App.spamProbability(model, probe);
+        long version = App.version(model);
+        if (version < reader.lastVersion) {
+            throw new IllegalStateException("Model version went backwards: " + reader.lastVersion + " -> " + version);
+        }
+        if (score < 0 || !(probability >= 0 && probability <= 1)) {
+            throw new IllegalStateException("Invalid result: score " + score + ", probability " + probability);
+        }
+        reader.lastVersion = version;
+        return score + probability;
+    }
+}
@@ -0,0 +1,92 @@
+package spamfilter.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// The dollar, exclamation and all-caps checks as classifyEmail used to run
+// them, with case-converted copies and a regex compiled per call, against
+// one SpamPatternScanner pass per field, and the whole rule score for
+// scale. Run with -PjmhProfilers=gc to see the bytes allocated per message.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PatternCheckBenchmark {
+    private static final String[][] MESSAGES = {
+        {"spam@domain.com", "WIN A FREE PRIZE NOW!!",
+            "Congratulations, you have won $1000 cash. Click here to claim your prize today."},
+        {"boss@company.com", "Meeting Reminder",
+            "Meeting tomorrow at 10 AM in the main conference room. Please bring the quarterly report."},
+        {"security-alert@bank-verify.com", "Account Suspension Notice",
+            "URGENT: Your account has been suspended. Verify your password immediately to restore access."},
+        {"colleague@company.com", "Project Proposal Review",
+            "Please review the attached project proposal and send me your comments by Friday."}
+    };
+
+    private Object model;
+    private final Object[] emails = new Object[MESSAGES.length];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            model = App.currentModel(App.newClassifier(App.trainingData()));
+        } finally {
+            System.setOut(stdout);
+        }
+        for (int i = 0; i < MESSAGES.length; i++) {
+            emails[i] = App.newEmail(MESSAGES[i][0], MESSAGES[i][1], MESSAGES[i][2]);
+        }
+    }
+
+    @Benchmark
+    public int regexChecks() {
+        Object email = emails[next++ & (MESSAGES.length - 1)];
+        String subject = App.subject(email).toLowerCase();
+        String body = App.body(email).toLowerCase();
+        int score = 0;
+        if (body.matches(".*\\$\\d+.*")) {
+            score += 2;
+        }
+        if (subject.matches(".*[!]{2,}.*")) {
+            score += 1;
+        }
+        if (subject.toUpperCase().equals(subject) && subject.length() > 10) {
+            score += 2;
+        }
+        return score;
+    }
+
+    @Benchmark
+    public int scannerChecks() {
+        Object email = emails[next++ & (MESSAGES.length - 1)];
+        String subject = App.subject(email);
+        int subjectFlags = App.scan(subject);
+        int bodyFlags = App.scan(App.body(email));
+        int score = 0;
+        if (App.hasDollarAmount(bodyFlags)) {
+            score += 2;
+        }
+        if (App.hasMultipleExclamation(subjectFlags)) {
+            score += 1;
+        }
+        if ((subjectFlags & App.HAS_LETTER) == 0 && subject.length() > 10) {
+            score += 2;
+        }
+        return score;
+    }
+
+    @Benchmark
+    public int scoreEmail() {
+        return App.scoreEmail(model, emails[next++ & (MESSAGES.length - 1)]);
+    }
+}
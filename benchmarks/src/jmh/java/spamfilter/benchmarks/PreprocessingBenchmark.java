@@ -0,0 +1,61 @@
+package spamfilter.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// DataPreprocessor.cleanText against the regex version it replaced, on
+// texts of 1 KB to 10 MB made of message bodies from the training data's
+// distribution
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreprocessingBenchmark {
+    // At most this many characters of distinct texts are kept in memory
+    private static final int MAX_TOTAL_CHARS = 32 << 20;
+
+    @Param({"1", "64", "1024", "10240"})
+    public int kilobytes;
+
+    private Object preprocessor;
+    private String[] texts;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        preprocessor = App.newPreprocessor();
+        Object corpus = App.corpus(App.trainingData());
+        Random random = new Random(42);
+        int chars = kilobytes << 10;
+        // A power of two, so the next text is picked with a mask
+        texts = new String[Integer.highestOneBit(Math.max(1, Math.min(16, MAX_TOTAL_CHARS / chars)))];
+        for (int i = 0; i < texts.length; i++) {
+            StringBuilder text = new StringBuilder(chars + 1024);
+            while (text.length() < chars) {
+                if (text.length() > 0) {
+                    text.append('\n');
+                }
+                text.append(App.body(App.nextEmail(corpus, random, random.nextBoolean())));
+            }
+            text.setLength(chars);
+            texts[i] = text.toString();
+        }
+    }
+
+    @Benchmark
+    public String cleanText() {
+        return App.cleanText(preprocessor, texts[next++ & (texts.length - 1)]);
+    }
+
+    @Benchmark
+    public String regexCleanText() {
+        return RegexPreprocessor.cleanText(texts[next++ & (texts.length - 1)]);
+    }
+}
@@ -0,0 +1,23 @@
+package spamfilter.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// The regex and stream version of DataPreprocessor.cleanText that the
+// single-pass normalizer replaced, kept as the baseline it is measured
+// against. Both return the same text.
+final class RegexPreprocessor {
+    private static final List<String> STOP_WORDS = Arrays.asList("and", "the", "is", "in", "at", "of", "a", "to");
+
+    private RegexPreprocessor() {
+    }
+
+    static String cleanText(String text) {
+        String cleanedText = text.replaceAll("[^a-zA-Z0-9\\s]", "").toLowerCase();
+        cleanedText = Arrays.stream(cleanedText.split("\\s+"))
+                .filter(word -> !STOP_WORDS.contains(word))
+                .collect(Collectors.joining(" "));
+        return cleanedText.trim();
+    }
+}
@@ -0,0 +1,83 @@
+package spamfilter.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+// Rule scoring throughput with one shared model on 1, 2 and 4 threads and
+// on every core. Linear scaling keeps messages per millisecond per thread
+// the same from one method to the next.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScalingBenchmark {
+    private static final int MESSAGES = 64;
+
+    private Object model;
+    private final Object[] emails = new Object[MESSAGES];
+
+    // Each thread walks the messages from its own position
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setUp() {
+            next = (int) Thread.currentThread().getId();
+        }
+
+        int next() {
+            return next++ & (MESSAGES - 1);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            model = App.currentModel(App.newClassifier(App.trainingData()));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        Object corpus = App.corpus(App.trainingData());
+        Random random = new Random(42);
+        for (int i = 0; i < MESSAGES; i++) {
+            emails[i] = App.nextEmail(corpus, random, random.nextBoolean());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int oneThread(Cursor cursor) {
+        return App.scoreEmail(model, emails[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public int twoThreads(Cursor cursor) {
+        return App.scoreEmail(model, emails[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int fourThreads(Cursor cursor) {
+        return App.scoreEmail(model, emails[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int allCores(Cursor cursor) {
+        return App.scoreEmail(model, emails[cursor.next()]);
+    }
+}
@@ -0,0 +1,60 @@
+package spamfilter.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Cost of the EmailClassifier constructor: CSV parsing, keyword extraction,
+// Naive Bayes training and automaton construction
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TrainingBenchmark {
+    // 0 trains on training_data.csv itself, otherwise on a synthetic corpus
+    // of that many rows drawn from its distribution
+    @Param({"0", "10000", "100000"})
+    public int rows;
+
+    private String corpus;
+    private Path syntheticFile;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (rows == 0) {
+            corpus = App.trainingData();
+        } else {
+            syntheticFile = Files.createTempFile("synthetic-corpus", ".csv");
+            App.writeCorpus(App.corpus(App.trainingData()), syntheticFile, rows, 42);
+            corpus = syntheticFile.toString();
+        }
+        // The constructor reports progress on System.out
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.setOut(stdout);
+        if (syntheticFile != null) {
+            Files.deleteIfExists(syntheticFile);
+        }
+    }
+
+    @Benchmark
+    public Object train() {
+        return App.newClassifier(corpus);
+    }
+}
@@ -0,0 +1,529 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Immutable once constructed: all tables are final and only read while
+// matching, so one instance can be shared by any number of threads.
+public final class AhoCorasickMatcher {
+    static final int ROOT = 0;
+    static final int NONE = -1;
+
+    private final int[] fail;
+    private final int[] dictLink;        // nearest terminal node on the fail chain
+    private final boolean[] terminal;
+    private final int nodeCount;
+
+    // Goto function as an open-addressing table keyed by (node, char)
+    private final long[] edgeKeys;
+    private final int[] edgeTargets;
+    private final int edgeMask;
+    private final int edgeCount;
+
+    private final int patternCount;
+    private final boolean matchesEmpty;
+    private final int maxOutputs;        // most patterns that can end at one position
+    private final int longestPattern;
+
+    // Per-thread marks so each pattern is counted at most once per scan.
+    // They are shared by every matcher and grow to the largest one a thread
+    // has used, so a matcher replaced by learning leaves nothing behind.
+    private static final ThreadLocal<Marks> MARKS = ThreadLocal.withInitial(Marks::new);
+
+    // Pattern length per node, built on first use by matchedPatterns()
+    private volatile int[] depths;
+
+    public AhoCorasickMatcher(Iterable<? extends CharSequence> patterns) {
+        this(new Builder(patterns));
+    }
+
+    private AhoCorasickMatcher(Builder builder) {
+        nodeCount = builder.nodeCount;
+        patternCount = builder.patternCount;
+        matchesEmpty = builder.matchesEmpty;
+        edgeKeys = builder.edgeKeys;
+        edgeTargets = builder.edgeTargets;
+        edgeMask = builder.edgeMask;
+        edgeCount = builder.edgeCount;
+        fail = builder.fail;
+        dictLink = builder.dictLink;
+        terminal = Arrays.copyOf(builder.terminal, nodeCount);
+        maxOutputs = longestOutputChain(terminal, dictLink, nodeCount);
+        longestPattern = longestPattern(edgeKeys, edgeTargets, terminal, nodeCount);
+    }
+
+    // Restores a matcher written by writeTo, bulk-copying the arrays out of buffer
+    private AhoCorasickMatcher(ByteBuffer buffer) {
+        nodeCount = buffer.getInt();
+        patternCount = buffer.getInt();
+        matchesEmpty = buffer.get() != 0;
+        edgeCount = buffer.getInt();
+        edgeKeys = ModelSnapshot.readLongs(buffer);
+        edgeTargets = ModelSnapshot.readInts(buffer);
+        edgeMask = edgeKeys.length - 1;
+        fail = ModelSnapshot.readInts(buffer);
+        dictLink = ModelSnapshot.readInts(buffer);
+        terminal = ModelSnapshot.readBooleans(buffer);
+        maxOutputs = longestOutputChain(terminal, dictLink, nodeCount);
+        longestPattern = longestPattern(edgeKeys, edgeTargets, terminal, nodeCount);
+    }
+
+    // Depth of the deepest terminal node
+    private static int longestPattern(long[] edgeKeys, int[] edgeTargets, boolean[] terminal, int nodeCount) {
+        int[] depth = depths(edgeKeys, edgeTargets, nodeCount);
+        int longest = 0;
+        for (int node = 1; node < nodeCount; node++) {
+            if (terminal[node]) {
+                longest = Math.max(longest, depth[node]);
+            }
+        }
+        return longest;
+    }
+
+    // Nodes are numbered after their parent, so depths can be filled in
+    // node order from the edge table
+    private static int[] depths(long[] edgeKeys, int[] edgeTargets, int nodeCount) {
+        int[] parent = new int[nodeCount];
+        for (int i = 0; i < edgeKeys.length; i++) {
+            if (edgeKeys[i] != NONE) {
+                parent[edgeTargets[i]] = (int) (edgeKeys[i] >>> 16);
+            }
+        }
+        int[] depth = new int[nodeCount];
+        for (int node = 1; node < nodeCount; node++) {
+            depth[node] = depth[parent[node]] + 1;
+        }
+        return depth;
+    }
+
+    private static int longestOutputChain(boolean[] terminal, int[] dictLink, int nodeCount) {
+        int longest = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (terminal[node]) {
+                int length = 0;
+                for (int out = node; out != NONE; out = dictLink[out]) {
+                    length++;
+                }
+                longest = Math.max(longest, length);
+            }
+        }
+        return longest;
+    }
+
+    public static AhoCorasickMatcher readFrom(ByteBuffer buffer) {
+        return new AhoCorasickMatcher(buffer);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(nodeCount);
+        out.writeInt(patternCount);
+        out.writeByte(matchesEmpty ? 1 : 0);
+        out.writeInt(edgeCount);
+        ModelSnapshot.writeLongs(out, edgeKeys, edgeKeys.length);
+        ModelSnapshot.writeInts(out, edgeTargets, edgeTargets.length);
+        ModelSnapshot.writeInts(out, fail, nodeCount);
+        ModelSnapshot.writeInts(out, dictLink, nodeCount);
+        ModelSnapshot.writeBooleans(out, terminal, nodeCount);
+    }
+
+    public int size() {
+        return patternCount;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public long estimatedBytes() {
+        return (long) edgeKeys.length * (Long.BYTES + Integer.BYTES)
+            + (long) nodeCount * (2 * Integer.BYTES + 1);
+    }
+
+    // Number of distinct patterns that occur in text, i.e. the number of
+    // patterns p for which text.toString().contains(p) is true
+    public int countMatches(CharSequence text) {
+        return countMatches(text, false);
+    }
+
+    // Same as countMatches(text.toLowerCase()) for ASCII text, without the copy
+    public int countMatchesFoldingAscii(CharSequence text) {
+        return countMatches(text, true);
+    }
+
+    // Counts like countMatches(text) but stops as soon as the count reaches
+    // limit, or once the rest of the text is too short to supply the missing
+    // matches. The result is >= limit exactly when countMatches(text) is.
+    public int countMatches(CharSequence text, int limit) {
+        return countMatches(text, false, limit);
+    }
+
+    public int countMatchesFoldingAscii(CharSequence text, int limit) {
+        return countMatches(text, true, limit);
+    }
+
+    private int countMatches(CharSequence text, boolean foldAscii, int limit) {
+        int matches = matchesEmpty ? 1 : 0;
+        if (matches >= limit || limit > patternCount) {
+            return matches;
+        }
+        Marks marks = MARKS.get();
+        int[] seen = marks.seen(nodeCount);
+        int mark = marks.next();
+
+        int n = text.length();
+        int hopeless = hopelessFrom(n, limit - matches);
+        int node = ROOT;
+        for (int i = 0; i < hopeless; i++) {
+            char c = text.charAt(i);
+            node = step(node, foldAscii ? SpamPatternScanner.foldAscii(c) : c);
+            int found = collect(node, seen, mark);
+            if (found != 0) {
+                matches += found;
+                if (matches >= limit) {
+                    return matches;
+                }
+                hopeless = hopelessFrom(n, limit - matches);
+            }
+        }
+        return matches;
+    }
+
+    // Starts counting distinct patterns in a text that arrives in pieces
+    public Scan newScan() {
+        return new Scan();
+    }
+
+    // A count over a text fed in pieces. The automaton state carries over,
+    // so a pattern split across two pieces is still found. The scan has its
+    // own marks, so other counts may run on this thread between pieces.
+    public final class Scan {
+        private final int[] seen = new int[nodeCount];
+        private final int mark = 1;
+        private int node = ROOT;
+        private int matches = matchesEmpty ? 1 : 0;
+
+        private Scan() {
+        }
+
+        // Feeds text[from, to) and returns the count so far
+        public int feed(char[] text, int from, int to, boolean foldAscii) {
+            int current = node;
+            int count = matches;
+            for (int i = from; i < to; i++) {
+                char c = text[i];
+                current = step(current, foldAscii ? SpamPatternScanner.foldAscii(c) : c);
+                count += collect(current, seen, mark);
+            }
+            node = current;
+            matches = count;
+            return count;
+        }
+
+        public int feed(CharSequence text) {
+            int current = node;
+            int count = matches;
+            for (int i = 0, n = text.length(); i < n; i++) {
+                current = step(current, text.charAt(i));
+                count += collect(current, seen, mark);
+            }
+            node = current;
+            matches = count;
+            return count;
+        }
+
+        public int matches() {
+            return matches;
+        }
+    }
+
+    // First position from which the n - i remaining positions, each ending
+    // at most maxOutputs patterns, can no longer supply missing more matches
+    private int hopelessFrom(int n, int missing) {
+        if (maxOutputs == 0) {
+            return 0;
+        }
+        int positionsNeeded = (missing + maxOutputs - 1) / maxOutputs;
+        return Math.max(0, n - positionsNeeded + 1);
+    }
+
+    private int countMatches(CharSequence text, boolean foldAscii) {
+        Marks marks = MARKS.get();
+        int[] seen = marks.seen(nodeCount);
+        int mark = marks.next();
+
+        int matches = matchesEmpty ? 1 : 0;
+        int node = ROOT;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            node = step(node, foldAscii ? SpamPatternScanner.foldAscii(c) : c);
+            matches += collect(node, seen, mark);
+        }
+        return matches;
+    }
+
+    // The distinct patterns countMatches() would count in text, in the order
+    // they first end, each as it appears in text (ASCII-folded if foldAscii).
+    // Slower than counting; meant for explaining a score.
+    public List<String> matchedPatterns(CharSequence text, boolean foldAscii) {
+        int[] depth = depths;
+        if (depth == null) {
+            depth = depths(edgeKeys, edgeTargets, nodeCount);
+            depths = depth;
+        }
+        Marks marks = MARKS.get();
+        int[] seen = marks.seen(nodeCount);
+        int mark = marks.next();
+
+        List<String> found = new ArrayList<>();
+        if (matchesEmpty) {
+            found.add("");
+        }
+        StringBuilder pattern = new StringBuilder();
+        int node = ROOT;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            node = step(node, foldAscii ? SpamPatternScanner.foldAscii(c) : c);
+            for (int out = firstOutput(node); out != NONE && seen[out] != mark; out = dictLink[out]) {
+                seen[out] = mark;
+                pattern.setLength(0);
+                for (int j = i + 1 - depth[out]; j <= i; j++) {
+                    pattern.append(foldAscii ? SpamPatternScanner.foldAscii(text.charAt(j)) : text.charAt(j));
+                }
+                found.add(pattern.toString());
+            }
+        }
+        return found;
+    }
+
+    int step(int node, char c) {
+        return step(edgeKeys, edgeTargets, edgeMask, fail, node, c);
+    }
+
+    // Length of the longest pattern, so a match ending at position e starts
+    // at or after e - longestPattern()
+    int longestPattern() {
+        return longestPattern;
+    }
+
+    boolean matchesEmpty() {
+        return matchesEmpty;
+    }
+
+    // The patterns that end when the scan reaches node: firstOutput(node),
+    // then nextOutput() of each until NONE. Patterns are identified by their
+    // terminal node.
+    int firstOutput(int node) {
+        return terminal[node] ? node : dictLink[node];
+    }
+
+    int nextOutput(int out) {
+        return dictLink[out];
+    }
+
+    int collect(int node, int[] seen, int mark) {
+        int matches = 0;
+        int out = terminal[node] ? node : dictLink[node];
+        // Once a terminal is marked its whole dictionary chain is marked too
+        while (out != NONE && seen[out] != mark) {
+            seen[out] = mark;
+            matches++;
+            out = dictLink[out];
+        }
+        return matches;
+    }
+
+    // Marks of one thread. A scan takes the next generation, so marks left
+    // by earlier scans, with this matcher or another, never equal it.
+    private static final class Marks {
+        private int[] seen = new int[0];
+        private int generation;
+
+        int[] seen(int nodes) {
+            if (seen.length < nodes) {
+                seen = new int[Math.max(nodes, seen.length + (seen.length >> 1))];
+            }
+            return seen;
+        }
+
+        int next() {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(seen, 0);
+                generation = 1;
+            }
+            return generation;
+        }
+    }
+
+    private static int step(long[] keys, int[] targets, int mask, int[] fail, int node, char c) {
+        while (true) {
+            int next = edge(keys, targets, mask, node, c);
+            if (next != NONE) {
+                return next;
+            }
+            if (node == ROOT) {
+                return ROOT;
+            }
+            node = fail[node];
+        }
+    }
+
+    private static long key(int node, char c) {
+        return ((long) node << 16) | c;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int edge(long[] keys, int[] targets, int mask, int node, char c) {
+        long k = key(node, c);
+        for (int i = slot(k, mask); ; i = (i + 1) & mask) {
+            long existing = keys[i];
+            if (existing == k) {
+                return targets[i];
+            }
+            if (existing == NONE) {
+                return NONE;
+            }
+        }
+    }
+
+    // Mutable trie used only during construction
+    private static final class Builder {
+        // First child / next sibling lists drive the breadth-first link pass
+        private int[] firstChild;
+        private int[] nextSibling;
+        private char[] label;
+        private boolean[] terminal;
+        private int nodeCount;
+
+        private long[] edgeKeys;
+        private int[] edgeTargets;
+        private int edgeMask;
+        private int edgeCount;
+
+        private int[] fail;
+        private int[] dictLink;
+        private int patternCount;
+        private boolean matchesEmpty;
+
+        Builder(Iterable<? extends CharSequence> patterns) {
+            int capacity = 16;
+            firstChild = new int[capacity];
+            nextSibling = new int[capacity];
+            label = new char[capacity];
+            terminal = new boolean[capacity];
+            Arrays.fill(firstChild, NONE);
+            nodeCount = 1;
+
+            edgeKeys = new long[64];
+            edgeTargets = new int[64];
+            Arrays.fill(edgeKeys, NONE);
+            edgeMask = 63;
+
+            for (CharSequence pattern : patterns) {
+                if (pattern.length() == 0) {
+                    // "".contains("") is always true
+                    if (!matchesEmpty) {
+                        matchesEmpty = true;
+                        patternCount++;
+                    }
+                    continue;
+                }
+                int node = ROOT;
+                for (int i = 0; i < pattern.length(); i++) {
+                    char c = pattern.charAt(i);
+                    int next = edge(edgeKeys, edgeTargets, edgeMask, node, c);
+                    if (next == NONE) {
+                        next = addNode(node, c);
+                    }
+                    node = next;
+                }
+                if (!terminal[node]) {
+                    terminal[node] = true;
+                    patternCount++;
+                }
+            }
+
+            buildFailureLinks();
+        }
+
+        private int addNode(int parent, char c) {
+            if (nodeCount == firstChild.length) {
+                int capacity = nodeCount * 2;
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                label = Arrays.copyOf(label, capacity);
+                terminal = Arrays.copyOf(terminal, capacity);
+                Arrays.fill(firstChild, nodeCount, capacity, NONE);
+            }
+            int node = nodeCount++;
+            label[node] = c;
+            nextSibling[node] = firstChild[parent];
+            firstChild[parent] = node;
+            putEdge(parent, c, node);
+            return node;
+        }
+
+        private void buildFailureLinks() {
+            fail = new int[nodeCount];
+            dictLink = new int[nodeCount];
+            dictLink[ROOT] = NONE;
+
+            int[] queue = new int[nodeCount];
+            int head = 0;
+            int tail = 0;
+            for (int child = firstChild[ROOT]; child != NONE; child = nextSibling[child]) {
+                fail[child] = ROOT;
+                dictLink[child] = NONE;
+                queue[tail++] = child;
+            }
+            while (head < tail) {
+                int node = queue[head++];
+                for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                    int f = step(edgeKeys, edgeTargets, edgeMask, fail, fail[node], label[child]);
+                    fail[child] = f;
+                    dictLink[child] = terminal[f] ? f : dictLink[f];
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        private void putEdge(int node, char c, int target) {
+            if ((edgeCount + 1) * 2 > edgeKeys.length) {
+                growEdges();
+            }
+            long k = key(node, c);
+            int i = slot(k, edgeMask);
+            while (edgeKeys[i] != NONE) {
+                i = (i + 1) & edgeMask;
+            }
+            edgeKeys[i] = k;
+            edgeTargets[i] = target;
+            edgeCount++;
+        }
+
+        private void growEdges() {
+            long[] oldKeys = edgeKeys;
+            int[] oldTargets = edgeTargets;
+            edgeKeys = new long[oldKeys.length * 2];
+            edgeTargets = new int[oldKeys.length * 2];
+            Arrays.fill(edgeKeys, NONE);
+            edgeMask = edgeKeys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                long k = oldKeys[j];
+                if (k != NONE) {
+                    int i = slot(k, edgeMask);
+                    while (edgeKeys[i] != NONE) {
+                        i = (i + 1) & edgeMask;
+                    }
+                    edgeKeys[i] = k;
+                    edgeTargets[i] = oldTargets[j];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class BatchClassifier {
+    private static final int QUEUE_PER_WORKER = 256;
+    private static final long PROGRESS_INTERVAL = 100_000;
+
+    private final EmailClassifier classifier;
+    private final int workers;
+
+    public BatchClassifier(EmailClassifier classifier, int workers) {
+        this.classifier = classifier;
+        this.workers = workers;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java BatchClassifier <input.csv|input.mbox> <output.csv> [threads] [trainingData] [model]");
+            System.exit(1);
+        }
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        String trainingData = args.length > 3 ? args[3] : EmailClassifier.DEFAULT_TRAINING_DATA;
+        String model = args.length > 4 ? args[4] : EmailClassifier.DEFAULT_MODEL;
+
+        try {
+            EmailClassifier classifier = EmailClassifier.load(trainingData, model);
+            BatchClassifier batch = new BatchClassifier(classifier, threads);
+            batch.run(input, output);
+        } catch (Exception e) {
+            System.out.println("Batch classification failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // "-" reads standard input, e.g. a pipe from the mail server
+    public static EmailSource openSource(Path input) throws IOException {
+        BufferedReader reader = input.toString().equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(input, StandardCharsets.UTF_8);
+        if (isMbox(input, reader)) {
+            return new MboxEmailSource(reader);
+        }
+        return new CsvEmailSource(reader);
+    }
+
+    private static boolean isMbox(Path input, BufferedReader reader) throws IOException {
+        String name = input.getFileName().toString().toLowerCase();
+        if (name.endsWith(".mbox") || name.endsWith(".mbx")) {
+            return true;
+        }
+        if (name.endsWith(".csv")) {
+            return false;
+        }
+        // Peek at the first line without consuming it
+        char[] start = new char[5];
+        reader.mark(start.length);
+        int read = 0;
+        int n;
+        while (read < start.length && (n = reader.read(start, read, start.length - read)) > 0) {
+            read += n;
+        }
+        reader.reset();
+        return new String(start, 0, read).equals("From ");
+    }
+
+    public long run(Path input, Path output) throws Exception {
+        System.out.println("Classifying " + input + " with " + workers + " worker threads...");
+
+        // A reader thread drains the input into a queue that spills to disk
+        // when the workers fall behind, so a piped input is never stalled.
+        // Futures are queued in input order, so the writer emits results in
+        // order while the bounded queue caps the number of messages in flight
+        SpillQueue queue = SpillQueue.fromSystemProperties();
+        BlockingQueue<CompletableFuture<String>> pending = new ArrayBlockingQueue<>(workers * QUEUE_PER_WORKER);
+        CompletableFuture<String> endOfInput = CompletableFuture.completedFuture(null);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+        // Periodic metrics dump; set -Dspamfilter.metrics.interval=0 to turn it off
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+        long metricsInterval = Long.getLong("spamfilter.metrics.interval", 10);
+        ScheduledExecutorService metricsReporter = (metrics.isEnabled() && metricsInterval > 0)
+                ? metrics.startPeriodicReport(metricsInterval, System.out) : null;
+
+        long start = System.nanoTime();
+        long[] written = new long[1];
+        Exception[] writerError = new Exception[1];
+        Exception[] readerError = new Exception[1];
+
+        Thread reader = new Thread(() -> {
+            try (EmailSource source = openSource(input)) {
+                Email email;
+                while ((email = source.next()) != null) {
+                    queue.put(email);
+                }
+            } catch (Exception e) {
+                readerError[0] = e;
+            } finally {
+                queue.finish();
+            }
+        }, "batch-reader");
+        reader.start();
+
+        Thread writer = new Thread(() -> {
+            try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                out.write("index,verdict,score");
+                out.newLine();
+                while (true) {
+                    CompletableFuture<String> next = pending.take();
+                    if (next == endOfInput) {
+                        break;
+                    }
+                    out.write(next.join());
+                    out.newLine();
+                    if (++written[0] % PROGRESS_INTERVAL == 0) {
+                        report(written[0], start);
+                    }
+                }
+            } catch (Exception e) {
+                writerError[0] = e;
+            }
+        }, "batch-writer");
+        writer.start();
+
+        try {
+            EncodedEmail email;
+            long index = 0;
+            while ((email = queue.take()) != null) {
+                final EncodedEmail message = email;
+                final long position = index++;
+                if (!enqueue(pending, CompletableFuture.supplyAsync(() -> format(position, message), pool), writer)) {
+                    break;
+                }
+            }
+        } finally {
+            enqueue(pending, endOfInput, writer);
+            writer.join();
+            // Releases a reader blocked on a full spill file if the writer died
+            queue.close();
+            reader.join();
+            pool.shutdown();
+            if (metricsReporter != null) {
+                metricsReporter.shutdownNow();
+            }
+        }
+
+        if (writerError[0] != null) {
+            throw writerError[0];
+        }
+        if (readerError[0] != null) {
+            throw readerError[0];
+        }
+        System.out.println("Done.");
+        report(written[0], start);
+        if (queue.spilled() > 0) {
+            System.out.println("- " + queue.spilled() + " messages were spilled to disk while the workers were behind");
+        }
+        if (metrics.isEnabled()) {
+            System.out.print(metrics.getReport());
+        }
+        return written[0];
+    }
+
+    private static boolean enqueue(BlockingQueue<CompletableFuture<String>> pending,
+                                   CompletableFuture<String> result, Thread writer) throws InterruptedException {
+        // Block while the writer is behind, but never on a writer that has died
+        while (!pending.offer(result, 100, TimeUnit.MILLISECONDS)) {
+            if (!writer.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String format(long index, EncodedEmail email) {
+        // The verdict includes the sender's reputation; the score is the content's
+        SpamScore result = classifier.score(email);
+        String verdict = result.isSpam() ? "spam" : "ham";
+        return index + "," + verdict + "," + result.score();
+    }
+
+    private static void report(long messages, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Runtime runtime = Runtime.getRuntime();
+        long usedMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        System.out.printf("- %d messages in %.1f s (%.0f messages/sec, heap %d MB)%n",
+                messages, seconds, messages / Math.max(seconds, 1e-9), usedMb);
+    }
+}
@@ -0,0 +1,425 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+// Bounded cache of rule verdicts, rule scores and Naive Bayes probabilities,
+// keyed by a 128-bit fingerprint of the subject and body. Campaigns repeat
+// the same text with a different sender, so repeats skip the matchers and
+// the tokenizer. The sender's reputation is looked up before the cache, so
+// the key leaves the sender out; every scorer folds case, so it ignores
+// ASCII case too, and hits are exact.
+//
+// With nearDuplicateBits > 0 a message whose SimHash is within that many
+// bits of a cached one reuses its result, which catches copies that only
+// differ by a tracking token. Those hits are approximate, so it is off by
+// default and only used for messages with at least MIN_SIMHASH_TOKENS words.
+//
+// Entries live in sets of WAYS slots; each set is ordered most recently
+// used first and evicts its last slot. Results belong to one model: when
+// the classifier publishes a new one, every entry is dropped.
+public final class ClassificationCache {
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int MAX_NEAR_DUPLICATE_BITS = 3;
+    static final int MIN_SIMHASH_TOKENS = 16;
+
+    private static final int WAYS = 8;
+    private static final int BANDS = 4;
+    private static final int RULES = 0;
+    private static final int BAYES = 1;
+    private static final int VERDICT = 2;
+    private static final int FIELDS = 3;
+    private static final ThreadLocal<Key> KEYS = ThreadLocal.withInitial(Key::new);
+
+    private final int setMask;
+    private final int nearDuplicateBits;
+    private final Object[] locks;
+
+    // Slot arrays, WAYS consecutive slots per set; epoch 0 marks a free slot
+    private final long[] fingerprintHigh;
+    private final long[] fingerprintLow;
+    private final long[] simHashes;
+    private final int[] epochs;
+    private final double[] values; // FIELDS per slot, NaN until computed
+
+    // SimHash band value -> set that last stored a message with it
+    private final int[] bandSets;
+    private final int bandMask;
+
+    // The model results are cached for and the epoch stamped on its
+    // entries, published together so they are always read as a pair
+    private volatile Generation generation = new Generation(null, 1);
+
+    private static final class Generation {
+        final ClassifierModel model;
+        final int epoch;
+
+        Generation(ClassifierModel model, int epoch) {
+            this.model = model;
+            this.epoch = epoch;
+        }
+    }
+
+    private static final class Key {
+        long high;
+        long low;
+        long simHash;
+        final int[] bitWeights = new int[64];
+    }
+
+    public ClassificationCache(int capacity) {
+        this(capacity, 0);
+    }
+
+    public ClassificationCache(int capacity, int nearDuplicateBits) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        if (nearDuplicateBits < 0 || nearDuplicateBits > MAX_NEAR_DUPLICATE_BITS) {
+            throw new IllegalArgumentException("nearDuplicateBits must be between 0 and " + MAX_NEAR_DUPLICATE_BITS);
+        }
+        int sets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS) * 2 - 1);
+        setMask = sets - 1;
+        this.nearDuplicateBits = nearDuplicateBits;
+        locks = new Object[Math.min(sets, 256)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        int slots = sets * WAYS;
+        fingerprintHigh = new long[slots];
+        fingerprintLow = new long[slots];
+        simHashes = new long[slots];
+        epochs = new int[slots];
+        values = new double[slots * FIELDS];
+        Arrays.fill(values, Double.NaN);
+        int bandSlots = nearDuplicateBits > 0 ? Integer.highestOneBit(slots * 2 - 1) : 1;
+        bandSets = new int[bandSlots * BANDS];
+        Arrays.fill(bandSets, -1);
+        bandMask = bandSlots - 1;
+    }
+
+    // Size from -Dspamfilter.cache.size (0 disables the cache) and
+    // near-duplicate matching from -Dspamfilter.cache.nearDuplicateBits
+    public static ClassificationCache fromSystemProperties() {
+        int capacity = Integer.getInteger("spamfilter.cache.size", DEFAULT_CAPACITY);
+        if (capacity <= 0) {
+            return null;
+        }
+        return new ClassificationCache(capacity, Integer.getInteger("spamfilter.cache.nearDuplicateBits", 0));
+    }
+
+    public int capacity() {
+        return epochs.length;
+    }
+
+    public int nearDuplicateBits() {
+        return nearDuplicateBits;
+    }
+
+    // Number of slots holding results for the current model
+    public int size() {
+        int current = generation.epoch;
+        int size = 0;
+        for (int set = 0; set <= setMask; set++) {
+            synchronized (lock(set)) {
+                for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+                    if (epochs[slot] == current) {
+                        size++;
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    // Drops every entry
+    public synchronized void invalidate() {
+        advance(generation.model);
+    }
+
+    private void advance(ClassifierModel model) {
+        int epoch = generation.epoch;
+        generation = new Generation(model, epoch == Integer.MAX_VALUE ? 1 : epoch + 1);
+        ClassifierMetrics.get().recordCacheInvalidation();
+    }
+
+    public int scoreEmail(ClassifierModel model, Email email) {
+        double cached = lookup(model, email, RULES);
+        if (!Double.isNaN(cached)) {
+            return (int) cached;
+        }
+        int score = model.scoreEmail(email);
+        store(model, RULES, score);
+        return score;
+    }
+
+    // As scoreEmail(model, email) for a message held as CharSequences, such
+    // as an EncodedEmail
+    public int scoreEmail(ClassifierModel model, CharSequence subject, CharSequence body) {
+        double cached = lookup(model, subject, body, RULES);
+        if (!Double.isNaN(cached)) {
+            return (int) cached;
+        }
+        int score = model.scoreEmail(subject, body);
+        store(model, RULES, score);
+        return score;
+    }
+
+    public boolean isSpam(ClassifierModel model, Email email) {
+        double cached = lookup(model, email, VERDICT);
+        if (!Double.isNaN(cached)) {
+            return cached != 0;
+        }
+        boolean spam = model.isSpam(email);
+        store(model, VERDICT, spam ? 1 : 0);
+        return spam;
+    }
+
+    public double spamProbability(ClassifierModel model, Email email) {
+        double cached = lookup(model, email, BAYES);
+        if (!Double.isNaN(cached)) {
+            return cached;
+        }
+        double probability = model.spamProbability(email);
+        store(model, BAYES, probability);
+        return probability;
+    }
+
+    // Fingerprints the email into this thread's key and returns the cached
+    // value, or NaN on a miss
+    private double lookup(ClassifierModel model, Email email, int field) {
+        return lookup(model, email.getSubject(), email.getBody(), field);
+    }
+
+    private double lookup(ClassifierModel model, CharSequence subject, CharSequence body, int field) {
+        Key key = KEYS.get();
+        fingerprint(subject, body, key);
+        int current = epochFor(model);
+        if (current == 0) {
+            key.high = key.low = 0;
+            return Double.NaN;
+        }
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+
+        int set = (int) key.high & setMask;
+        synchronized (lock(set)) {
+            int base = set * WAYS;
+            for (int way = 0; way < WAYS; way++) {
+                int slot = base + way;
+                if (epochs[slot] == current && fingerprintHigh[slot] == key.high && fingerprintLow[slot] == key.low) {
+                    double value = values[slot * FIELDS + field];
+                    if (!Double.isNaN(value)) {
+                        moveToFront(base, way);
+                        metrics.recordCacheLookup(true, false);
+                        return value;
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (key.simHash != 0) {
+            for (int band = 0; band < BANDS; band++) {
+                int candidate = bandSets[bandIndex(key.simHash, band)];
+                if (candidate >= 0) {
+                    double value = nearDuplicate(candidate, key.simHash, current, field);
+                    if (!Double.isNaN(value)) {
+                        metrics.recordCacheLookup(true, true);
+                        return value;
+                    }
+                }
+            }
+        }
+        metrics.recordCacheLookup(false, false);
+        return Double.NaN;
+    }
+
+    private double nearDuplicate(int set, long simHash, int current, int field) {
+        synchronized (lock(set)) {
+            int base = set * WAYS;
+            for (int way = 0; way < WAYS; way++) {
+                int slot = base + way;
+                if (epochs[slot] == current && simHashes[slot] != 0
+                        && Long.bitCount(simHashes[slot] ^ simHash) <= nearDuplicateBits) {
+                    double value = values[slot * FIELDS + field];
+                    if (!Double.isNaN(value)) {
+                        moveToFront(base, way);
+                        return value;
+                    }
+                }
+            }
+        }
+        return Double.NaN;
+    }
+
+    // Stores a value computed after lookup() missed on this thread
+    private void store(ClassifierModel model, int field, double value) {
+        Key key = KEYS.get();
+        if (key.high == 0 && key.low == 0) {
+            return;
+        }
+        int current = epochFor(model);
+        if (current == 0) {
+            return;
+        }
+        int set = (int) key.high & setMask;
+        synchronized (lock(set)) {
+            int base = set * WAYS;
+            int way = 0;
+            while (way < WAYS && !(epochs[base + way] == current
+                    && fingerprintHigh[base + way] == key.high && fingerprintLow[base + way] == key.low)) {
+                way++;
+            }
+            if (way == WAYS) {
+                // New entry replaces the least recently used slot
+                way = WAYS - 1;
+                int slot = base + way;
+                if (epochs[slot] == current) {
+                    ClassifierMetrics.get().recordCacheEviction();
+                }
+                epochs[slot] = current;
+                fingerprintHigh[slot] = key.high;
+                fingerprintLow[slot] = key.low;
+                simHashes[slot] = key.simHash;
+                Arrays.fill(values, slot * FIELDS, slot * FIELDS + FIELDS, Double.NaN);
+            }
+            int slot = base + way;
+            values[slot * FIELDS + field] = value;
+            if (field == RULES) {
+                values[slot * FIELDS + VERDICT] = value >= EmailClassifier.SPAM_THRESHOLD ? 1 : 0;
+            }
+            moveToFront(base, way);
+        }
+        if (key.simHash != 0) {
+            for (int band = 0; band < BANDS; band++) {
+                bandSets[bandIndex(key.simHash, band)] = set;
+            }
+        }
+    }
+
+    // Returns the epoch of results for this model, or 0 to bypass the cache.
+    // A newer model drops all entries; a thread still scoring with an older
+    // one bypasses the cache instead of flushing it back.
+    private int epochFor(ClassifierModel model) {
+        Generation current = generation;
+        if (current.model == model) {
+            return current.epoch;
+        }
+        synchronized (this) {
+            current = generation;
+            if (current.model == null) {
+                // First use; nothing to drop
+                generation = new Generation(model, current.epoch);
+            } else if (current.model != model) {
+                if (model.version() < current.model.version()) {
+                    return 0;
+                }
+                advance(model);
+            }
+            return generation.epoch;
+        }
+    }
+
+    private void moveToFront(int base, int way) {
+        if (way == 0) {
+            return;
+        }
+        int slot = base + way;
+        long high = fingerprintHigh[slot];
+        long low = fingerprintLow[slot];
+        long simHash = simHashes[slot];
+        int slotEpoch = epochs[slot];
+        double rules = values[slot * FIELDS + RULES];
+        double bayes = values[slot * FIELDS + BAYES];
+        double verdict = values[slot * FIELDS + VERDICT];
+        System.arraycopy(fingerprintHigh, base, fingerprintHigh, base + 1, way);
+        System.arraycopy(fingerprintLow, base, fingerprintLow, base + 1, way);
+        System.arraycopy(simHashes, base, simHashes, base + 1, way);
+        System.arraycopy(epochs, base, epochs, base + 1, way);
+        System.arraycopy(values, base * FIELDS, values, (base + 1) * FIELDS, way * FIELDS);
+        fingerprintHigh[base] = high;
+        fingerprintLow[base] = low;
+        simHashes[base] = simHash;
+        epochs[base] = slotEpoch;
+        values[base * FIELDS + RULES] = rules;
+        values[base * FIELDS + BAYES] = bayes;
+        values[base * FIELDS + VERDICT] = verdict;
+    }
+
+    private Object lock(int set) {
+        return locks[set & (locks.length - 1)];
+    }
+
+    private int bandIndex(long simHash, int band) {
+        int bandValue = (int) (simHash >>> (band * 16)) & 0xFFFF;
+        return band * (bandMask + 1) + (int) (mix(bandValue * 0x9E3779B97F4A7C15L + band) & bandMask);
+    }
+
+    // Two independent 64-bit hashes of the subject length, subject and body
+    // with ASCII letters folded to lower case, plus the SimHash when near
+    // duplicates are enabled
+    private void fingerprint(CharSequence subject, CharSequence body, Key key) {
+        boolean fold = !SpamPatternScanner.hasSpecialCasing(Locale.getDefault());
+        long high = 0xcbf29ce484222325L ^ subject.length();
+        long low = 0x9E3779B97F4A7C15L * (subject.length() + 1);
+        for (int part = 0; part < 2; part++) {
+            CharSequence text = part == 0 ? subject : body;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (fold) {
+                    c = SpamPatternScanner.foldAscii(c);
+                }
+                high = (high ^ c) * 0x100000001b3L;
+                low = (Long.rotateLeft(low, 23) ^ c) * 0xff51afd7ed558ccdL;
+            }
+        }
+        key.high = mix(high);
+        key.low = mix(low ^ body.length());
+        key.simHash = nearDuplicateBits > 0 ? simHash(subject, body, fold, key.bitWeights) : 0;
+    }
+
+    // 64-bit SimHash over words (runs of letters and digits); 0 when there
+    // are too few words for distances to be meaningful
+    private static long simHash(CharSequence subject, CharSequence body, boolean fold, int[] weights) {
+        Arrays.fill(weights, 0);
+        int words = 0;
+        for (int part = 0; part < 2; part++) {
+            CharSequence text = part == 0 ? subject : body;
+            long hash = 0;
+            boolean inWord = false;
+            for (int i = 0; i <= text.length(); i++) {
+                char c = i < text.length() ? text.charAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    if (!inWord) {
+                        hash = 0xcbf29ce484222325L + part;
+                        inWord = true;
+                    }
+                    hash = (hash ^ (fold ? SpamPatternScanner.foldAscii(c) : c)) * 0x100000001b3L;
+                } else if (inWord) {
+                    inWord = false;
+                    words++;
+                    long bits = mix(hash);
+                    for (int b = 0; b < 64; b++) {
+                        weights[b] += (int) ((bits >>> b) & 1) * 2 - 1;
+                    }
+                }
+            }
+        }
+        if (words < MIN_SIMHASH_TOKENS) {
+            return 0;
+        }
+        long simHash = 0;
+        for (int b = 0; b < 64; b++) {
+            if (weights[b] > 0) {
+                simHash |= 1L << b;
+            }
+        }
+        return simHash == 0 ? 1 : simHash;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
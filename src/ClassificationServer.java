@@ -0,0 +1,292 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Embedded HTTP front end for mail gateways, built on the JDK's HTTP server.
+//   POST /classify        {"sender": ..., "subject": ..., "body": ...}
+//   POST /classify/batch  [{...}, {...}] or {"messages": [{...}, ...]}
+//   GET  /health          model version
+//   GET  /metrics         ClassifierMetrics report as text
+// Each result is {"verdict": "spam"|"ham", "score": n, "scoreProbability": c,
+// "spamProbability": p, "modelVersion": v}, where c is the calibrated
+// probability of the rule score and p the Naive Bayes probability. The
+// verdict is the sender's when its reputation decides it, as in
+// classifyEmail(); scores and probabilities are the content's. All
+// requests share one EmailClassifier. Single messages are micro-batched; a
+// batch request is scored as one batch against a single model version.
+public class ClassificationServer {
+    public static final int DEFAULT_PORT = 8080;
+    private static final int MAX_REQUEST_BYTES = 10 << 20;
+    private static final int MAX_BATCH_MESSAGES = 10_000;
+
+    static {
+        // Without TCP_NODELAY small responses wait on delayed ACKs, adding
+        // about 40 ms to every request; must be set before the server starts
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final EmailClassifier classifier;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final boolean virtualThreads;
+    private final MicroBatcher<Email, String> batcher;
+
+    public ClassificationServer(EmailClassifier classifier, InetSocketAddress address,
+                                int batchSize, long batchDelayMicros) throws IOException {
+        this.classifier = classifier;
+        batcher = new MicroBatcher<>("classify-batch", Runtime.getRuntime().availableProcessors(),
+            batchSize, batchDelayMicros, this::classifyAll);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        requestExecutor = virtualThreads ? virtual : newPlatformThreadExecutor();
+        server = HttpServer.create(address, 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/classify", this::handleClassify);
+        server.createContext("/classify/batch", this::handleBatch);
+        server.createContext("/health", this::handleHealth);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String trainingData = args.length > 1 ? args[1] : EmailClassifier.DEFAULT_TRAINING_DATA;
+        String model = args.length > 2 ? args[2] : EmailClassifier.DEFAULT_MODEL;
+        int batchSize = Integer.getInteger("spamfilter.http.batchSize", 32);
+        long batchDelayMicros = Long.getLong("spamfilter.http.batchDelayMicros", 200);
+
+        try {
+            EmailClassifier classifier = EmailClassifier.load(trainingData, model);
+            ModelReloader.fromSystemProperties(classifier, trainingData, model);
+            ClassificationServer server = new ClassificationServer(classifier,
+                new InetSocketAddress(port), batchSize, batchDelayMicros);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+            System.out.println("Spam filter listening on http://localhost:" + server.port()
+                + "/classify (" + (server.usesVirtualThreads() ? "virtual" : "platform") + " request threads)");
+        } catch (Exception e) {
+            System.out.println("Failed to start classification server: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        batcher.close();
+        requestExecutor.shutdown();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public double averageBatchSize() {
+        return batcher.averageBatchSize();
+    }
+
+    // Virtual threads need JDK 21 (or 19-20 with --enable-preview); looking
+    // the factory up reflectively keeps the code compiling on 17. Returns
+    // null when they are not available.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Request threads mostly wait on the micro-batcher, so allow many per core
+    private static ExecutorService newPlatformThreadExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        int threads = Math.max(32, Runtime.getRuntime().availableProcessors() * 16);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void handleClassify(HttpExchange exchange) throws IOException {
+        if (!requirePost(exchange, "/classify")) {
+            return;
+        }
+        Email email;
+        try {
+            email = toEmail(Json.parse(readBody(exchange)));
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+        try {
+            send(exchange, 200, batcher.submit(email).get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Interrupted");
+        } catch (ExecutionException e) {
+            sendError(exchange, 500, String.valueOf(e.getCause().getMessage()));
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        if (!requirePost(exchange, "/classify/batch")) {
+            return;
+        }
+        List<Email> emails = new ArrayList<>();
+        try {
+            Object request = Json.parse(readBody(exchange));
+            if (request instanceof Map) {
+                request = ((Map<?, ?>) request).get("messages");
+            }
+            if (!(request instanceof List)) {
+                throw new IllegalArgumentException("Expected an array of messages");
+            }
+            List<?> messages = (List<?>) request;
+            if (messages.size() > MAX_BATCH_MESSAGES) {
+                sendError(exchange, 413, "At most " + MAX_BATCH_MESSAGES + " messages per batch");
+                return;
+            }
+            for (Object message : messages) {
+                emails.add(toEmail(message));
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(emails.size() * 80 + 2).append('[');
+        List<String> results = classifyAll(emails);
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(results.get(i));
+        }
+        send(exchange, 200, sb.append(']').toString());
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        send(exchange, 200, "{\"status\":\"ok\",\"modelVersion\":" + classifier.currentModel().version() + "}");
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        byte[] report = ClassifierMetrics.get().getReport().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, report.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(report);
+        }
+    }
+
+    // Scores every email against the same model version. Without a cache
+    // each message is tokenized once for both the rules and Naive Bayes.
+    private List<String> classifyAll(List<Email> emails) {
+        ClassifierModel model = classifier.currentModel();
+        ClassificationCache cache = classifier.cache();
+        List<String> results = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            int sender = classifier.senderVerdict(model, email.getSender());
+            if (cache != null) {
+                results.add(result(model, cache.scoreEmail(model, email), cache.spamProbability(model, email), sender));
+                continue;
+            }
+            MessageFeatures features = MessageFeatures.of(email, true);
+            try {
+                results.add(result(model, model.scoreEmail(features), model.spamProbability(features), sender));
+            } finally {
+                features.release();
+            }
+        }
+        return results;
+    }
+
+    private static String result(ClassifierModel model, int score, double probability, int sender) {
+        return "{\"verdict\":\"" + (SpamScore.isSpam(score, sender) ? "spam" : "ham")
+            + "\",\"score\":" + score + ",\"scoreProbability\":" + model.calibration().probability(score)
+            + ",\"spamProbability\":" + probability
+            + ",\"modelVersion\":" + model.version() + "}";
+    }
+
+    private static Email toEmail(Object message) {
+        if (!(message instanceof Map)) {
+            throw new IllegalArgumentException("Expected a message object");
+        }
+        Map<?, ?> fields = (Map<?, ?>) message;
+        return new Email(field(fields, "sender"), field(fields, "subject"), field(fields, "body"));
+    }
+
+    private static String field(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        if (value == null) {
+            return "";
+        }
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("Field \"" + name + "\" must be a string");
+        }
+        return (String) value;
+    }
+
+    // Contexts match by prefix, so also reject longer paths
+    private static boolean requirePost(HttpExchange exchange, String path) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals(path)) {
+            sendError(exchange, 404, "Not found");
+            return false;
+        }
+        if ("POST".equals(exchange.getRequestMethod())) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", "POST");
+        sendError(exchange, 405, "Use POST");
+        return false;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                if (body.size() + n > MAX_REQUEST_BYTES) {
+                    throw new IllegalArgumentException("Request body exceeds " + MAX_REQUEST_BYTES + " bytes");
+                }
+                body.write(buffer, 0, n);
+            }
+        }
+        return body.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "{\"error\":" + Json.quote(new StringBuilder(), String.valueOf(message)) + "}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
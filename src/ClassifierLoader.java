@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Loads an EmailClassifier on a background thread so that a UI can appear
+// before the model is ready. Requests made while it loads wait on await();
+// progress goes to an optional listener. With -Dspamfilter.reload=true the
+// loaded classifier is then kept up to date by a ModelReloader.
+public final class ClassifierLoader {
+    // Receives the current loading stage and the fraction of it done, or -1
+    // when the stage cannot tell. Called on the loading threads.
+    public interface Progress {
+        Progress NONE = (stage, fraction) -> { };
+
+        void update(String stage, double fraction);
+    }
+
+    private final CompletableFuture<EmailClassifier> classifier = new CompletableFuture<>();
+    private volatile ModelReloader reloader;
+
+    private ClassifierLoader() {
+    }
+
+    // Starts loading like EmailClassifier.load() and returns at once
+    public static ClassifierLoader start(String trainingDataPath, String modelPath, Progress progress) {
+        ClassifierLoader loader = new ClassifierLoader();
+        // A thread of its own, so that loading never queues behind other
+        // work in the common pool
+        Thread thread = new Thread(() -> {
+            try {
+                EmailClassifier loaded = EmailClassifier.load(trainingDataPath, modelPath, progress);
+                try {
+                    loader.reloader = ModelReloader.fromSystemProperties(loaded, trainingDataPath, modelPath);
+                } catch (IOException e) {
+                    System.out.println("Warning: Could not watch the model files for changes: " + e.getMessage());
+                }
+                progress.update("Ready", 1.0);
+                loader.classifier.complete(loaded);
+            } catch (Throwable e) {
+                loader.classifier.completeExceptionally(e);
+            }
+        }, "classifier-loader");
+        thread.setDaemon(true);
+        thread.start();
+        return loader;
+    }
+
+    // Watches the model files once loaded; null unless reloading is on
+    public ModelReloader reloader() {
+        return reloader;
+    }
+
+    public boolean isReady() {
+        return classifier.isDone() && !classifier.isCompletedExceptionally();
+    }
+
+    // Completes with the classifier, or exceptionally if loading failed
+    public CompletableFuture<EmailClassifier> future() {
+        return classifier;
+    }
+
+    // Waits until the classifier is loaded; throws what loading threw
+    public EmailClassifier await() throws Exception {
+        try {
+            return classifier.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Process-wide classification metrics. Recording is lock-free; when metrics
+// are disabled the hot path only pays for one volatile read per message.
+// Enable or disable with -Dspamfilter.metrics=true|false or over JMX.
+public final class ClassifierMetrics implements ClassifierMetricsMXBean {
+    public static final String OBJECT_NAME = "SpamFilter:type=ClassifierMetrics";
+
+    private static final ClassifierMetrics INSTANCE = new ClassifierMetrics();
+
+    static {
+        // Starting the platform MBean server takes a few hundred milliseconds,
+        // so register in the background rather than delay startup
+        Thread registration = new Thread(INSTANCE::registerMBean, "metrics-jmx");
+        registration.setDaemon(true);
+        registration.start();
+    }
+
+    private final LatencyHistogram tokenize = new LatencyHistogram("tokenize");
+    private final LatencyHistogram subjectScan = new LatencyHistogram("subject scan");
+    private final LatencyHistogram bodyScan = new LatencyHistogram("body scan");
+    private final LatencyHistogram patternChecks = new LatencyHistogram("pattern checks");
+    private final LatencyHistogram total = new LatencyHistogram("total");
+    private final LatencyHistogram bayes = new LatencyHistogram("naive bayes");
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder spamVerdicts = new LongAdder();
+    private final LongAdder keywordHits = new LongAdder();
+    private final LongAdder subjectPhraseHits = new LongAdder();
+    private final LongAdder dollarAmountHits = new LongAdder();
+    private final LongAdder exclamationHits = new LongAdder();
+    private final LongAdder allCapsHits = new LongAdder();
+
+    private final LongAdder cacheLookups = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheNearDuplicateHits = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder cacheInvalidations = new LongAdder();
+
+    private final LongAdder reputationLookups = new LongAdder();
+    private final LongAdder reputationAddressHits = new LongAdder();
+    private final LongAdder reputationDomainHits = new LongAdder();
+    private final LongAdder reputationSpamVerdicts = new LongAdder();
+    private final LongAdder reputationHamVerdicts = new LongAdder();
+
+    private final LongAdder reloads = new LongAdder();
+    private volatile long lastReloadNanos;
+    private volatile long modelVersion;
+
+    // Training stage name -> duration of the most recent run in nanoseconds
+    private final Map<String, Long> trainingStages = new LinkedHashMap<>();
+
+    private volatile boolean enabled = Boolean.parseBoolean(System.getProperty("spamfilter.metrics", "true"));
+
+    private ClassifierMetrics() {
+    }
+
+    public static ClassifierMetrics get() {
+        return INSTANCE;
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception | LinkageError e) {
+            // JMX is optional; metrics still work and can be printed
+            System.out.println("Warning: Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void recordStages(long subjectScanNanos, long bodyScanNanos, long patternCheckNanos) {
+        subjectScan.record(subjectScanNanos);
+        bodyScan.record(bodyScanNanos);
+        patternChecks.record(patternCheckNanos);
+        total.record(subjectScanNanos + bodyScanNanos + patternCheckNanos);
+    }
+
+    public void recordTokenize(long nanos) {
+        tokenize.record(nanos);
+    }
+
+    public void recordBayes(long nanos) {
+        bayes.record(nanos);
+    }
+
+    public void recordVerdict(boolean spam, int keywordMatches, int subjectPhraseMatches,
+                              boolean dollarAmount, boolean exclamation, boolean allCaps) {
+        messages.increment();
+        if (spam) {
+            spamVerdicts.increment();
+        }
+        keywordHits.add(keywordMatches);
+        subjectPhraseHits.add(subjectPhraseMatches);
+        if (dollarAmount) {
+            dollarAmountHits.increment();
+        }
+        if (exclamation) {
+            exclamationHits.increment();
+        }
+        if (allCaps) {
+            allCapsHits.increment();
+        }
+    }
+
+    public void recordCacheLookup(boolean hit, boolean nearDuplicate) {
+        if (!enabled) {
+            return;
+        }
+        cacheLookups.increment();
+        if (hit) {
+            cacheHits.increment();
+        }
+        if (nearDuplicate) {
+            cacheNearDuplicateHits.increment();
+        }
+    }
+
+    public void recordCacheEviction() {
+        if (enabled) {
+            cacheEvictions.increment();
+        }
+    }
+
+    public void recordCacheInvalidation() {
+        cacheInvalidations.increment();
+    }
+
+    // Takes a SenderReputation.lookup() result
+    public void recordReputationLookup(int result) {
+        if (!enabled) {
+            return;
+        }
+        reputationLookups.increment();
+        if ((result & SenderReputation.ADDRESS_SEEN) != 0) {
+            reputationAddressHits.increment();
+        }
+        if ((result & SenderReputation.DOMAIN_SEEN) != 0) {
+            reputationDomainHits.increment();
+        }
+        if ((result & SenderReputation.SPAM) != 0) {
+            reputationSpamVerdicts.increment();
+        } else if ((result & SenderReputation.HAM) != 0) {
+            reputationHamVerdicts.increment();
+        }
+    }
+
+    public void recordReload(long nanos, long version) {
+        reloads.increment();
+        lastReloadNanos = nanos;
+        modelVersion = version;
+    }
+
+    public void recordModelVersion(long version) {
+        modelVersion = version;
+    }
+
+    public void recordTrainingStage(String stage, long nanos) {
+        synchronized (trainingStages) {
+            trainingStages.put(stage, nanos);
+        }
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getSpamVerdicts() {
+        return spamVerdicts.sum();
+    }
+
+    @Override
+    public long getKeywordHits() {
+        return keywordHits.sum();
+    }
+
+    @Override
+    public long getSubjectPhraseHits() {
+        return subjectPhraseHits.sum();
+    }
+
+    @Override
+    public long getPatternHits() {
+        return dollarAmountHits.sum() + exclamationHits.sum() + allCapsHits.sum();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long lookups = cacheLookups.sum();
+        return lookups == 0 ? 0.0 : (double) cacheHits.sum() / lookups;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    @Override
+    public long getCacheInvalidations() {
+        return cacheInvalidations.sum();
+    }
+
+    @Override
+    public double getReputationHitRate() {
+        long lookups = reputationLookups.sum();
+        return lookups == 0 ? 0.0 : (double) reputationAddressHits.sum() / lookups;
+    }
+
+    @Override
+    public double getReputationShortCircuitRate() {
+        long lookups = reputationLookups.sum();
+        return lookups == 0 ? 0.0 : (double) (reputationSpamVerdicts.sum() + reputationHamVerdicts.sum()) / lookups;
+    }
+
+    @Override
+    public long getModelVersion() {
+        return modelVersion;
+    }
+
+    @Override
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    @Override
+    public double getLastReloadMillis() {
+        return lastReloadNanos / 1e6;
+    }
+
+    @Override
+    public double getTotalP50Micros() {
+        return total.percentile(0.50) / 1e3;
+    }
+
+    @Override
+    public double getTotalP99Micros() {
+        return total.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getTotalMaxMicros() {
+        return total.max() / 1e3;
+    }
+
+    @Override
+    public double getTokenizeP99Micros() {
+        return tokenize.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getSubjectScanP99Micros() {
+        return subjectScan.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getBodyScanP99Micros() {
+        return bodyScan.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getPatternChecksP99Micros() {
+        return patternChecks.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("===== Classifier metrics =====\n");
+        long count = messages.sum();
+        sb.append(String.format("messages=%d spam=%d (%.1f%%) keywordHits=%d subjectPhraseHits=%d"
+                + " dollarAmounts=%d exclamations=%d allCaps=%d%n",
+            count, spamVerdicts.sum(), count == 0 ? 0.0 : 100.0 * spamVerdicts.sum() / count,
+            keywordHits.sum(), subjectPhraseHits.sum(),
+            dollarAmountHits.sum(), exclamationHits.sum(), allCapsHits.sum()));
+        long lookups = cacheLookups.sum();
+        if (lookups > 0) {
+            sb.append(String.format("cache: lookups=%d hits=%d (%.1f%%) nearDuplicateHits=%d evictions=%d invalidations=%d%n",
+                lookups, cacheHits.sum(), 100.0 * getCacheHitRate(), cacheNearDuplicateHits.sum(),
+                cacheEvictions.sum(), cacheInvalidations.sum()));
+        }
+        if (modelVersion > 0 || reloads.sum() > 0) {
+            sb.append(String.format("model: version=%d reloads=%d lastReload=%.1f ms%n",
+                modelVersion, reloads.sum(), getLastReloadMillis()));
+        }
+        long senders = reputationLookups.sum();
+        if (senders > 0) {
+            sb.append(String.format("reputation: lookups=%d addressHits=%d (%.1f%%) domainHits=%d"
+                    + " shortCircuited=%d (%.1f%%, spam=%d ham=%d)%n",
+                senders, reputationAddressHits.sum(), 100.0 * getReputationHitRate(), reputationDomainHits.sum(),
+                reputationSpamVerdicts.sum() + reputationHamVerdicts.sum(), 100.0 * getReputationShortCircuitRate(),
+                reputationSpamVerdicts.sum(), reputationHamVerdicts.sum()));
+        }
+        for (LatencyHistogram histogram : new LatencyHistogram[] {tokenize, subjectScan, bodyScan, patternChecks, total, bayes}) {
+            if (histogram.count() > 0) {
+                sb.append(histogram.summary()).append('\n');
+            }
+        }
+        synchronized (trainingStages) {
+            for (Map.Entry<String, Long> stage : trainingStages.entrySet()) {
+                sb.append(String.format("training: %-24s %.1f ms%n", stage.getKey(), stage.getValue() / 1e6));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        tokenize.reset();
+        subjectScan.reset();
+        bodyScan.reset();
+        patternChecks.reset();
+        total.reset();
+        bayes.reset();
+        messages.reset();
+        spamVerdicts.reset();
+        keywordHits.reset();
+        subjectPhraseHits.reset();
+        dollarAmountHits.reset();
+        exclamationHits.reset();
+        allCapsHits.reset();
+        cacheLookups.reset();
+        cacheHits.reset();
+        cacheNearDuplicateHits.reset();
+        cacheEvictions.reset();
+        cacheInvalidations.reset();
+        reputationLookups.reset();
+        reputationAddressHits.reset();
+        reputationDomainHits.reset();
+        reputationSpamVerdicts.reset();
+        reputationHamVerdicts.reset();
+        reloads.reset();
+    }
+
+    // Prints the report every intervalSeconds on a daemon thread; returns the
+    // scheduler so callers can stop it
+    public ScheduledExecutorService startPeriodicReport(long intervalSeconds, PrintStream out) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            if (enabled) {
+                out.print(getReport());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+}
@@ -0,0 +1,51 @@
+// Management interface for ClassifierMetrics, registered with the platform
+// MBean server as "SpamFilter:type=ClassifierMetrics"
+public interface ClassifierMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getMessages();
+
+    long getSpamVerdicts();
+
+    long getKeywordHits();
+
+    long getSubjectPhraseHits();
+
+    long getPatternHits();
+
+    double getCacheHitRate();
+
+    long getCacheEvictions();
+
+    long getCacheInvalidations();
+
+    double getReputationHitRate();
+
+    double getReputationShortCircuitRate();
+
+    long getModelVersion();
+
+    long getReloads();
+
+    double getLastReloadMillis();
+
+    double getTotalP50Micros();
+
+    double getTotalP99Micros();
+
+    double getTotalMaxMicros();
+
+    double getTokenizeP99Micros();
+
+    double getSubjectScanP99Micros();
+
+    double getBodyScanP99Micros();
+
+    double getPatternChecksP99Micros();
+
+    String getReport();
+
+    void reset();
+}
@@ -0,0 +1,284 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// One published version of the trained model. A ClassifierModel is never
+// modified after it is published; learning builds a new one and swaps it in,
+// so a classification always sees a single consistent version.
+public final class ClassifierModel {
+    // -Dspamfilter.scoring.earlyExit=false makes isSpam() compute the full
+    // score, so the feature counters in the metrics see every check
+    static final boolean EARLY_EXIT = Boolean.parseBoolean(System.getProperty("spamfilter.scoring.earlyExit", "true"));
+
+    private final AhoCorasickMatcher keywordMatcher;
+    private final AhoCorasickMatcher subjectPhraseMatcher;
+    private final NaiveBayesModel bayesModel;
+    private final SenderReputation reputation;
+    private final ScoreCalibration calibration;
+    private final long version;
+
+    public ClassifierModel(AhoCorasickMatcher keywordMatcher, AhoCorasickMatcher subjectPhraseMatcher,
+                           NaiveBayesModel bayesModel, long version) {
+        this(keywordMatcher, subjectPhraseMatcher, bayesModel, new SenderReputation(), ScoreCalibration.DEFAULT, version);
+    }
+
+    // The reputation must not be modified after it is passed in
+    public ClassifierModel(AhoCorasickMatcher keywordMatcher, AhoCorasickMatcher subjectPhraseMatcher,
+                           NaiveBayesModel bayesModel, SenderReputation reputation,
+                           ScoreCalibration calibration, long version) {
+        this.keywordMatcher = keywordMatcher;
+        this.subjectPhraseMatcher = subjectPhraseMatcher;
+        this.bayesModel = bayesModel.freeze();
+        this.reputation = reputation;
+        this.calibration = calibration;
+        this.version = version;
+    }
+
+    public AhoCorasickMatcher keywordMatcher() {
+        return keywordMatcher;
+    }
+
+    public AhoCorasickMatcher subjectPhraseMatcher() {
+        return subjectPhraseMatcher;
+    }
+
+    public NaiveBayesModel bayesModel() {
+        return bayesModel;
+    }
+
+    public SenderReputation reputation() {
+        return reputation;
+    }
+
+    public ScoreCalibration calibration() {
+        return calibration;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int scoreEmail(Email email) {
+        MessageFeatures features = MessageFeatures.of(email, false);
+        try {
+            return scoreEmail(features);
+        } finally {
+            features.release();
+        }
+    }
+
+    // Scores a message held as CharSequences, such as an EncodedEmail,
+    // without copying it into Strings
+    public int scoreEmail(CharSequence subject, CharSequence body) {
+        MessageFeatures features = MessageFeatures.of(subject, body, false);
+        try {
+            return scoreEmail(features);
+        } finally {
+            features.release();
+        }
+    }
+
+    // Rule-based score; only needs the pattern flags, not the tokens
+    public int scoreEmail(MessageFeatures features) {
+        return scoreEmail(features, ClassifierMetrics.get().isEnabled());
+    }
+
+    // As scoreEmail(features), recorded in the metrics only if timed; scoring
+    // that is not classification, such as calibration, passes false
+    int scoreEmail(MessageFeatures features, boolean timed) {
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+        long start = timed ? System.nanoTime() : 0;
+
+        CharSequence subject = features.subject().text();
+        CharSequence body = features.body().text();
+        int subjectFlags = features.subject().flags();
+
+        // Check subject for spam phrases
+        int subjectPhraseMatches;
+        boolean allCapsSubject;
+        if (SpamPatternScanner.canFoldAscii(subjectFlags)) {
+            subjectPhraseMatches = subjectPhraseMatcher.countMatchesFoldingAscii(subject);
+            // A lower-cased ASCII subject only equals its upper case when it has no letters
+            allCapsSubject = (subjectFlags & SpamPatternScanner.HAS_LETTER) == 0 && subject.length() > 10;
+        } else {
+            String lowerSubject = subject.toString().toLowerCase();
+            subjectPhraseMatches = subjectPhraseMatcher.countMatches(lowerSubject);
+            allCapsSubject = lowerSubject.toUpperCase().equals(lowerSubject) && lowerSubject.length() > 10;
+        }
+        long subjectDone = timed ? System.nanoTime() : 0;
+
+        // Check body for spam keywords
+        int bodyFlags = features.body().flags();
+        int keywordMatches;
+        if (SpamPatternScanner.canFoldAscii(bodyFlags)) {
+            keywordMatches = keywordMatcher.countMatchesFoldingAscii(body);
+        } else {
+            keywordMatches = keywordMatcher.countMatches(body.toString().toLowerCase());
+        }
+        long bodyDone = timed ? System.nanoTime() : 0;
+
+        // Additional checks for common spam patterns
+        boolean dollarAmount = SpamPatternScanner.hasDollarAmount(bodyFlags);
+        boolean exclamation = SpamPatternScanner.hasMultipleExclamation(subjectFlags);
+        int totalScore = ruleScore(keywordMatches, dollarAmount, subjectPhraseMatches, exclamation, allCapsSubject);
+
+        if (timed) {
+            metrics.recordStages(subjectDone - start, bodyDone - subjectDone, System.nanoTime() - bodyDone);
+            metrics.recordVerdict(totalScore >= EmailClassifier.SPAM_THRESHOLD, keywordMatches,
+                subjectPhraseMatches, dollarAmount, exclamation, allCapsSubject);
+        }
+        return totalScore;
+    }
+
+    // What each rule feature adds to scoreEmail(features), in the order
+    // scoreEmail() checks them. Builds strings for every match, so it is
+    // only for explaining a score.
+    public List<SpamScore.Contribution> contributions(MessageFeatures features) {
+        CharSequence subject = features.subject().text();
+        CharSequence body = features.body().text();
+        int subjectFlags = features.subject().flags();
+        int bodyFlags = features.body().flags();
+        List<SpamScore.Contribution> contributions = new ArrayList<>();
+
+        boolean allCapsSubject;
+        List<String> phrases;
+        if (SpamPatternScanner.canFoldAscii(subjectFlags)) {
+            phrases = subjectPhraseMatcher.matchedPatterns(subject, true);
+            allCapsSubject = (subjectFlags & SpamPatternScanner.HAS_LETTER) == 0 && subject.length() > 10;
+        } else {
+            String lowerSubject = subject.toString().toLowerCase();
+            phrases = subjectPhraseMatcher.matchedPatterns(lowerSubject, false);
+            allCapsSubject = lowerSubject.toUpperCase().equals(lowerSubject) && lowerSubject.length() > 10;
+        }
+        // Subject points count double
+        for (String phrase : phrases) {
+            contributions.add(new SpamScore.Contribution("subject phrase", phrase, 4));
+        }
+
+        List<String> keywords = SpamPatternScanner.canFoldAscii(bodyFlags)
+            ? keywordMatcher.matchedPatterns(body, true)
+            : keywordMatcher.matchedPatterns(body.toString().toLowerCase(), false);
+        for (String keyword : keywords) {
+            contributions.add(new SpamScore.Contribution("keyword", keyword, 1));
+        }
+
+        if (SpamPatternScanner.hasDollarAmount(bodyFlags)) {
+            contributions.add(new SpamScore.Contribution("dollar amount", null, 2));
+        }
+        if (SpamPatternScanner.hasMultipleExclamation(subjectFlags)) {
+            contributions.add(new SpamScore.Contribution("exclamation marks", null, 2));
+        }
+        if (allCapsSubject) {
+            contributions.add(new SpamScore.Contribution("all-caps subject", null, 4));
+        }
+        return contributions;
+    }
+
+    // The rule score from its parts; IncrementalScorer adds them up the same way
+    static int ruleScore(int keywordMatches, boolean dollarAmount, int subjectPhraseMatches,
+                         boolean exclamation, boolean allCapsSubject) {
+        int subjectSpamScore = subjectPhraseMatches * 2;
+        int bodySpamScore = keywordMatches;
+
+        if (dollarAmount) {  // Contains dollar amounts
+            bodySpamScore += 2;
+        }
+
+        if (exclamation) {  // Multiple exclamation marks
+            subjectSpamScore += 1;
+        }
+
+        if (allCapsSubject) {  // ALL CAPS subject
+            subjectSpamScore += 2;
+        }
+
+        // Calculate final spam score with higher weight on subject
+        return bodySpamScore + (subjectSpamScore * 2);
+    }
+
+    public boolean isSpam(Email email) {
+        MessageFeatures features = MessageFeatures.of(email, false);
+        try {
+            return isSpam(features);
+        } finally {
+            features.release();
+        }
+    }
+
+    // Same verdict as scoreEmail(features) >= SPAM_THRESHOLD, but stops as
+    // soon as it is decided. The pattern flags are free after the scan, so
+    // they count first. Subject phrases come next: the subject is short
+    // and each match is worth 4 points. Body keywords, worth 1 point each,
+    // are matched last and only until enough are found. Feature counters
+    // in the metrics only include the checks that ran.
+    public boolean isSpam(MessageFeatures features) {
+        if (!EARLY_EXIT) {
+            return scoreEmail(features) >= EmailClassifier.SPAM_THRESHOLD;
+        }
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+        boolean timed = metrics.isEnabled();
+        long start = timed ? System.nanoTime() : 0;
+
+        CharSequence subject = features.subject().text();
+        CharSequence body = features.body().text();
+        int subjectFlags = features.subject().flags();
+        int bodyFlags = features.body().flags();
+
+        boolean foldSubject = SpamPatternScanner.canFoldAscii(subjectFlags);
+        String lowerSubject = foldSubject ? null : subject.toString().toLowerCase();
+        boolean allCapsSubject = foldSubject
+            ? (subjectFlags & SpamPatternScanner.HAS_LETTER) == 0 && subject.length() > 10
+            : lowerSubject.toUpperCase().equals(lowerSubject) && lowerSubject.length() > 10;
+        boolean dollarAmount = SpamPatternScanner.hasDollarAmount(bodyFlags);
+        boolean exclamation = SpamPatternScanner.hasMultipleExclamation(subjectFlags);
+        // Subject points count double in the total
+        int score = (dollarAmount ? 2 : 0) + (exclamation ? 2 : 0) + (allCapsSubject ? 4 : 0);
+        long patternsDone = timed ? System.nanoTime() : 0;
+
+        int subjectPhraseMatches = 0;
+        if (score < EmailClassifier.SPAM_THRESHOLD) {
+            int needed = (EmailClassifier.SPAM_THRESHOLD - score + 3) / 4;
+            subjectPhraseMatches = foldSubject
+                ? subjectPhraseMatcher.countMatchesFoldingAscii(subject, needed)
+                : subjectPhraseMatcher.countMatches(lowerSubject, needed);
+            score += subjectPhraseMatches * 4;
+        }
+        long subjectDone = timed ? System.nanoTime() : 0;
+
+        int keywordMatches = 0;
+        if (score < EmailClassifier.SPAM_THRESHOLD) {
+            int needed = EmailClassifier.SPAM_THRESHOLD - score;
+            keywordMatches = SpamPatternScanner.canFoldAscii(bodyFlags)
+                ? keywordMatcher.countMatchesFoldingAscii(body, needed)
+                : keywordMatcher.countMatches(body.toString().toLowerCase(), needed);
+            score += keywordMatches;
+        }
+        boolean spam = score >= EmailClassifier.SPAM_THRESHOLD;
+
+        if (timed) {
+            long end = System.nanoTime();
+            metrics.recordStages(subjectDone - patternsDone, end - subjectDone, patternsDone - start);
+            metrics.recordVerdict(spam, keywordMatches, subjectPhraseMatches, dollarAmount, exclamation, allCapsSubject);
+        }
+        return spam;
+    }
+
+    public double spamProbability(Email email) {
+        MessageFeatures features = MessageFeatures.of(email, true);
+        try {
+            return spamProbability(features);
+        } finally {
+            features.release();
+        }
+    }
+
+    public double spamProbability(MessageFeatures features) {
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+        if (!metrics.isEnabled()) {
+            return bayesModel.spamProbability(features);
+        }
+        long start = System.nanoTime();
+        double probability = bayesModel.spamProbability(features);
+        metrics.recordBayes(System.nanoTime() - start);
+        return probability;
+    }
+}
@@ -1,25 +1,45 @@
 import java.util.Scanner;
 
 public class ConsoleUI {
-    private static EmailClassifier classifier;
+    private static ClassifierLoader loader;
+    private static ScoringEngine engine = ScoringEngine.RULES;
 
     public static void main(String[] args) {
         try {
+            // Optional scoring engine argument: rules (default) or bayes
+            if (args.length > 0) {
+                engine = ScoringEngine.fromName(args[0]);
+            }
+            
+            // The model loads in the background; the first classification waits for it
             System.out.println("Initializing spam filter...");
-            classifier = new EmailClassifier("data/training_data.csv");
-            System.out.println("Spam filter initialized successfully!");
+            loader = ClassifierLoader.start(EmailClassifier.DEFAULT_TRAINING_DATA, EmailClassifier.DEFAULT_MODEL,
+                    ClassifierLoader.Progress.NONE);
+            System.out.println("Scoring engine: " + engine);
+            
+            // Optional periodic metrics dump, e.g. -Dspamfilter.metrics.interval=60
+            ClassifierMetrics metrics = ClassifierMetrics.get();
+            long metricsInterval = Long.getLong("spamfilter.metrics.interval", 0);
+            if (metrics.isEnabled() && metricsInterval > 0) {
+                metrics.startPeriodicReport(metricsInterval, System.out);
+            }
             
             Scanner scanner = new Scanner(System.in);
             
             while (true) {
                 System.out.println("\n===== Spam Filter =====");
-                System.out.print("Enter sender email (or 'exit' to quit): ");
+                System.out.print("Enter sender email (or 'metrics' for statistics, 'exit' to quit): ");
                 String sender = scanner.nextLine();
                 
                 if (sender.equalsIgnoreCase("exit")) {
                     break;
                 }
                 
+                if (sender.equalsIgnoreCase("metrics")) {
+                    System.out.print(metrics.getReport());
+                    continue;
+                }
+                
                 System.out.print("Enter email subject: ");
                 String subject = scanner.nextLine();
                 
@@ -36,11 +56,33 @@ public class ConsoleUI {
                     continue;
                 }
                 
+                EmailClassifier classifier;
+                try {
+                    if (!loader.isReady()) {
+                        System.out.println("Waiting for the spam filter to finish loading...");
+                    }
+                    classifier = loader.await();
+                } catch (Exception e) {
+                    System.out.println("Failed to initialize classifier: " + e.getMessage());
+                    e.printStackTrace();
+                    break;
+                }
+                
                 try {
                     Email email = new Email(sender, subject, body);
-                    double result = classifier.classifyEmail(email);
-                    String classification = (result == 0.0) ? "Not Spam (Ham)" : "Spam";
+                    double result = classifier.classifyEmail(email, engine);
+                    String classification = (result < 0.5) ? "Not Spam (Ham)" : "Spam";
                     System.out.println("\nClassification result: " + classification);
+                    if (engine == ScoringEngine.NAIVE_BAYES) {
+                        System.out.printf("Spam probability: %.1f%%%n", result * 100);
+                    } else {
+                        SpamScore score = classifier.score(email, true);
+                        System.out.printf("Score: %d (threshold %d), calibrated spam probability: %.1f%%%n",
+                            score.score(), EmailClassifier.SPAM_THRESHOLD, score.probability() * 100);
+                        for (SpamScore.Contribution contribution : score.contributions()) {
+                            System.out.println("  " + contribution);
+                        }
+                    }
                 } catch (Exception e) {
                     System.out.println("Error during classification: " + e.getMessage());
                     e.printStackTrace();
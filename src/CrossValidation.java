@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+// k-fold cross-validation over a labelled CSV in training_data.csv format.
+// A row's fold comes from a hash of its content, so it does not depend on
+// how the file is sharded, and duplicate rows land in the same fold instead
+// of being tested on a model that trained on them. The file is streamed
+// twice and never held in memory:
+//   1. shards are read in parallel and each row is trained into its fold's
+//      TrainingPartial; shard partials are merged per fold in file order
+//   2. one model per fold is built in parallel from the other folds'
+//      partials
+//   3. shards are read in parallel again and each row is scored by the
+//      model that did not train on it
+// A fold model holds the whole vocabulary, so steps 2 and 3 run for at most
+// modelsInMemory folds at a time; each further group of folds costs another
+// read of the file but no more memory.
+//
+// Reports confusion matrices per fold and overall for the rules engine,
+// the rules engine with sender verdicts and Naive Bayes, ROC points and AUC
+// for the rule score and the Naive Bayes probability, training time, and
+// per-message scoring latency percentiles.
+//
+// Usage: java CrossValidation <labelled.csv> [folds] [threads] [modelsInMemory]
+public final class CrossValidation {
+    public static final int DEFAULT_FOLDS = 5;
+
+    // Naive Bayes probabilities are binned for the ROC curve; bin b holds
+    // [b / PROBABILITY_BINS, (b + 1) / PROBABILITY_BINS)
+    private static final int PROBABILITY_BINS = 1000;
+
+    private static final int RULES = 0;
+    private static final int RULES_WITH_SENDER = 1;
+    private static final int BAYES = 2;
+    private static final String[] ENGINES = {"rules", "rules + sender", "naive bayes"};
+
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final Path csv;
+    private final int folds;
+    private final int threads;
+    private final int modelsInMemory;
+    private final int minEvidence;
+    private final boolean domainHam = SenderReputation.domainHamFromSystemProperties();
+    private final LatencyHistogram rulesLatency = new LatencyHistogram("rules");
+    private final LatencyHistogram bayesLatency = new LatencyHistogram("naive bayes");
+
+    public CrossValidation(Path csv, int folds, int threads, int modelsInMemory, int minEvidence) {
+        if (folds < 2) {
+            throw new IllegalArgumentException("Need at least 2 folds, got " + folds);
+        }
+        this.csv = csv;
+        this.folds = folds;
+        this.threads = threads;
+        this.modelsInMemory = Math.max(1, Math.min(folds, modelsInMemory));
+        this.minEvidence = minEvidence;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java CrossValidation <labelled.csv> [folds] [threads] [modelsInMemory]");
+            System.exit(1);
+        }
+        Path csv = Paths.get(args[0]);
+        int folds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_FOLDS;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        // By default one model per thread, so every thread can build one
+        int modelsInMemory = args.length > 3 ? Integer.parseInt(args[3]) : threads;
+        try {
+            new CrossValidation(csv, folds, threads, modelsInMemory,
+                SenderReputation.minEvidenceFromSystemProperties()).run();
+        } catch (Exception e) {
+            System.out.println("Could not cross-validate " + csv + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    public void run() throws Exception {
+        long[] bounds = ShardedTrainer.split(csv, threads > 1 ? threads * 2 : 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            TrainingPartial[] partials = train(executor, bounds);
+            long trainNanos = System.nanoTime() - start;
+
+            long[] buildNanos = new long[folds];
+            long buildTotal = 0;
+            long scoreTotal = 0;
+            Tally tally = new Tally(folds);
+            for (int first = 0; first < folds; first += modelsInMemory) {
+                long groupStart = System.nanoTime();
+                ClassifierModel[] models = buildModels(executor, partials, first,
+                    Math.min(folds, first + modelsInMemory), buildNanos);
+                long built = System.nanoTime();
+                tally.merge(score(executor, bounds, models));
+                scoreTotal += System.nanoTime() - built;
+                buildTotal += built - groupStart;
+            }
+
+            long rows = 0;
+            for (TrainingPartial partial : partials) {
+                rows += partial.spamRows() + partial.hamRows();
+            }
+            System.out.printf("%d-fold cross-validation of %s: %d rows, %d threads, %d shards, %d models in memory%n",
+                folds, csv, rows, threads, bounds.length - 1, modelsInMemory);
+            System.out.print("Rows per fold:");
+            for (TrainingPartial partial : partials) {
+                System.out.print(" " + (partial.spamRows() + partial.hamRows()));
+            }
+            System.out.println();
+            printTraining(rows, trainNanos, buildTotal, buildNanos);
+            System.out.printf("Scoring: %.1f ms, %.0f messages/s%n", scoreTotal / 1e6, rows / (scoreTotal / 1e9));
+            System.out.println();
+            tally.printConfusion();
+            System.out.println();
+            tally.printRoc();
+            System.out.println();
+            System.out.println("Per-message scoring latency (features and score):");
+            System.out.println("  " + rulesLatency.summary());
+            System.out.println("  " + bayesLatency.summary());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // The fold of the current record: FNV-1a over body, sender and subject
+    int fold(CsvReader reader) {
+        long hash = FNV_OFFSET;
+        for (int field = 0; field < 3; field++) {
+            CharSequence text = reader.field(field);
+            for (int i = 0, n = text.length(); i < n; i++) {
+                hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+            }
+            // Field separator, so moving text between fields changes the hash
+            hash = (hash ^ 0xFFFF) * FNV_PRIME;
+        }
+        return (int) Long.remainderUnsigned(hash ^ (hash >>> 32), folds);
+    }
+
+    // Pass 1: one partial per fold, trained on that fold's rows
+    private TrainingPartial[] train(ExecutorService executor, long[] bounds) throws Exception {
+        List<Future<TrainingPartial[]>> shards = new ArrayList<>();
+        for (int shard = 0; shard + 1 < bounds.length; shard++) {
+            int index = shard;
+            shards.add(executor.submit(() -> {
+                TrainingPartial[] partials = new TrainingPartial[folds];
+                for (int fold = 0; fold < folds; fold++) {
+                    partials[fold] = new TrainingPartial();
+                }
+                try (CsvReader reader = ShardedTrainer.openShard(csv, bounds, index)) {
+                    TrainingPartial.addRows(reader, partials, this::fold);
+                }
+                return partials;
+            }));
+        }
+        TrainingPartial[] merged = shards.get(0).get();
+        shards.set(0, null);
+        for (int shard = 1; shard < shards.size(); shard++) {
+            TrainingPartial[] partials = shards.get(shard).get();
+            // Merged shards can be collected while later ones are read
+            shards.set(shard, null);
+            for (int fold = 0; fold < folds; fold++) {
+                merged[fold].merge(partials[fold]);
+            }
+        }
+        return merged;
+    }
+
+    // Pass 2: the model for fold f is trained on every fold but f. The
+    // partials are only read, so the models can be built concurrently.
+    // Only folds [first, last) get a model.
+    private ClassifierModel[] buildModels(ExecutorService executor, TrainingPartial[] partials, int first, int last,
+                                          long[] buildNanos) throws Exception {
+        List<Future<ClassifierModel>> built = new ArrayList<>();
+        for (int fold = first; fold < last; fold++) {
+            int heldOut = fold;
+            built.add(executor.submit(() -> {
+                long start = System.nanoTime();
+                List<TrainingPartial> training = new ArrayList<>();
+                for (int other = 0; other < folds; other++) {
+                    if (other != heldOut) {
+                        training.add(partials[other]);
+                    }
+                }
+                ClassifierModel model = EmailClassifier.buildModel(training);
+                buildNanos[heldOut] = System.nanoTime() - start;
+                return model;
+            }));
+        }
+        ClassifierModel[] models = new ClassifierModel[folds];
+        for (int fold = first; fold < last; fold++) {
+            models[fold] = built.get(fold - first).get();
+        }
+        return models;
+    }
+
+    // Pass 3: every row of a fold with a model scored by that model
+    private Tally score(ExecutorService executor, long[] bounds, ClassifierModel[] models) throws Exception {
+        List<Future<Tally>> shards = new ArrayList<>();
+        for (int shard = 0; shard + 1 < bounds.length; shard++) {
+            int index = shard;
+            shards.add(executor.submit(() -> scoreShard(models, bounds, index)));
+        }
+        Tally total = new Tally(folds);
+        for (Future<Tally> shard : shards) {
+            total.merge(shard.get());
+        }
+        return total;
+    }
+
+    private Tally scoreShard(ClassifierModel[] models, long[] bounds, int shard) throws IOException {
+        Tally tally = new Tally(folds);
+        MessageFeatures features = new MessageFeatures();
+        try (CsvReader reader = ShardedTrainer.openShard(csv, bounds, shard)) {
+            while (reader.nextRecord()) {
+                if (reader.fieldCount() < 4) {
+                    continue;
+                }
+                int fold = fold(reader);
+                ClassifierModel model = models[fold];
+                if (model == null) {
+                    continue;
+                }
+                boolean spam = reader.fieldEquals(3, "spam");
+
+                // Each engine is timed with the feature extraction it needs
+                long start = System.nanoTime();
+                features.extract(reader.field(2), reader.field(0), false);
+                int score = model.scoreEmail(features, false);
+                long scored = System.nanoTime();
+                features.extract(reader.field(2), reader.field(0), true);
+                double probability = model.bayesModel().spamProbability(features);
+                long end = System.nanoTime();
+                rulesLatency.record(scored - start);
+                bayesLatency.record(end - scored);
+
+                int sender = model.reputation().lookup(reader.field(1), minEvidence, domainHam);
+                tally.add(fold, spam, score, sender, probability);
+            }
+        } finally {
+            features.release();
+        }
+        return tally;
+    }
+
+    private void printTraining(long rows, long passNanos, long buildNanos, long[] foldNanos) {
+        System.out.printf("Training: %.1f ms reading %d rows into %d fold partials (%.0f rows/s), "
+            + "%.1f ms building %d fold models%n",
+            passNanos / 1e6, rows, folds, rows / (passNanos / 1e9), buildNanos / 1e6, folds);
+        System.out.print("  model build per fold (ms):");
+        for (long nanos : foldNanos) {
+            System.out.printf(" %.1f", nanos / 1e6);
+        }
+        System.out.println();
+    }
+
+    // Confusion matrices and score histograms of the scored rows; each
+    // shard fills its own and they are merged at the end
+    private static final class Tally {
+        // confusion[engine][fold]
+        private final Confusion[][] confusion;
+        private final long[] ruleSpam = new long[ScoreCalibration.SCORE_BUCKETS];
+        private final long[] ruleHam = new long[ScoreCalibration.SCORE_BUCKETS];
+        private final long[] bayesSpam = new long[PROBABILITY_BINS];
+        private final long[] bayesHam = new long[PROBABILITY_BINS];
+
+        Tally(int folds) {
+            confusion = new Confusion[ENGINES.length][folds];
+            for (Confusion[] engine : confusion) {
+                for (int fold = 0; fold < folds; fold++) {
+                    engine[fold] = new Confusion();
+                }
+            }
+        }
+
+        void add(int fold, boolean spam, int score, int sender, double probability) {
+            boolean rules = score >= EmailClassifier.SPAM_THRESHOLD;
+            confusion[RULES][fold].add(rules, spam);
+            confusion[RULES_WITH_SENDER][fold].add(
+                SenderReputation.isDecided(sender) ? SenderReputation.isSpam(sender) : rules, spam);
+            confusion[BAYES][fold].add(probability >= 0.5, spam);
+
+            int bin = Math.min((int) (probability * PROBABILITY_BINS), PROBABILITY_BINS - 1);
+            if (spam) {
+                ruleSpam[ScoreCalibration.bucket(score)]++;
+                bayesSpam[bin]++;
+            } else {
+                ruleHam[ScoreCalibration.bucket(score)]++;
+                bayesHam[bin]++;
+            }
+        }
+
+        void merge(Tally other) {
+            for (int engine = 0; engine < confusion.length; engine++) {
+                for (int fold = 0; fold < confusion[engine].length; fold++) {
+                    confusion[engine][fold].merge(other.confusion[engine][fold]);
+                }
+            }
+            add(ruleSpam, other.ruleSpam);
+            add(ruleHam, other.ruleHam);
+            add(bayesSpam, other.bayesSpam);
+            add(bayesHam, other.bayesHam);
+        }
+
+        private static void add(long[] target, long[] source) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] += source[i];
+            }
+        }
+
+        void printConfusion() {
+            System.out.printf("%-6s %-15s %9s %9s %9s %9s %9s %9s %9s %9s%n",
+                "fold", "engine", "TP", "FP", "TN", "FN", "accuracy", "precision", "recall", "F1");
+            for (int engine = 0; engine < confusion.length; engine++) {
+                Confusion all = new Confusion();
+                for (int fold = 0; fold < confusion[engine].length; fold++) {
+                    confusion[engine][fold].print(String.valueOf(fold), ENGINES[engine]);
+                    all.merge(confusion[engine][fold]);
+                }
+                all.print("all", ENGINES[engine]);
+            }
+        }
+
+        void printRoc() {
+            System.out.printf("ROC, rules (spam when score >= t): AUC %.4f%n", auc(ruleSpam, ruleHam));
+            printRoc(ruleSpam, ruleHam, 1, t -> String.valueOf(t));
+            System.out.printf("ROC, naive bayes (spam when probability >= t): AUC %.4f%n", auc(bayesSpam, bayesHam));
+            printRoc(bayesSpam, bayesHam, PROBABILITY_BINS / 10,
+                bin -> String.format("%.2f", (double) bin / PROBABILITY_BINS));
+        }
+
+        // True and false positive rate at thresholds 0, stride, 2 * stride,
+        // ...; consecutive thresholds with the same point are printed once
+        private static void printRoc(long[] spam, long[] ham, int stride, IntFunction<String> threshold) {
+            long spamTotal = 0;
+            long hamTotal = 0;
+            for (int i = 0; i < spam.length; i++) {
+                spamTotal += spam[i];
+                hamTotal += ham[i];
+            }
+            System.out.printf("  %9s %9s %9s%n", "t", "TPR", "FPR");
+            long spamAbove = spamTotal;
+            long hamAbove = hamTotal;
+            long lastSpam = -1;
+            long lastHam = -1;
+            for (int i = 0; i < spam.length; i++) {
+                if (i % stride == 0 && (spamAbove != lastSpam || hamAbove != lastHam)) {
+                    System.out.printf("  %9s %9.4f %9.4f%n", threshold.apply(i),
+                        spamTotal == 0 ? 0.0 : (double) spamAbove / spamTotal,
+                        hamTotal == 0 ? 0.0 : (double) hamAbove / hamTotal);
+                    lastSpam = spamAbove;
+                    lastHam = hamAbove;
+                }
+                spamAbove -= spam[i];
+                hamAbove -= ham[i];
+            }
+        }
+
+        // Probability that a random spam row ranks above a random ham row,
+        // ties counting half (the Mann-Whitney U statistic)
+        static double auc(long[] spam, long[] ham) {
+            double pairs = 0;
+            long spamTotal = 0;
+            long hamBelow = 0;
+            for (int i = 0; i < spam.length; i++) {
+                pairs += spam[i] * (hamBelow + ham[i] / 2.0);
+                spamTotal += spam[i];
+                hamBelow += ham[i];
+            }
+            return spamTotal == 0 || hamBelow == 0 ? Double.NaN : pairs / ((double) spamTotal * hamBelow);
+        }
+    }
+
+    private static final class Confusion {
+        long truePositives;
+        long falsePositives;
+        long trueNegatives;
+        long falseNegatives;
+
+        void add(boolean predictedSpam, boolean spam) {
+            if (predictedSpam) {
+                if (spam) {
+                    truePositives++;
+                } else {
+                    falsePositives++;
+                }
+            } else if (spam) {
+                falseNegatives++;
+            } else {
+                trueNegatives++;
+            }
+        }
+
+        void merge(Confusion other) {
+            truePositives += other.truePositives;
+            falsePositives += other.falsePositives;
+            trueNegatives += other.trueNegatives;
+            falseNegatives += other.falseNegatives;
+        }
+
+        void print(String fold, String engine) {
+            long total = truePositives + falsePositives + trueNegatives + falseNegatives;
+            double accuracy = total == 0 ? 0.0 : (double) (truePositives + trueNegatives) / total;
+            double precision = truePositives + falsePositives == 0 ? 1.0
+                : (double) truePositives / (truePositives + falsePositives);
+            double recall = truePositives + falseNegatives == 0 ? 0.0
+                : (double) truePositives / (truePositives + falseNegatives);
+            double f1 = precision + recall == 0 ? 0.0 : 2 * precision * recall / (precision + recall);
+            System.out.printf("%-6s %-15s %9d %9d %9d %9d %9.4f %9.4f %9.4f %9.4f%n", fold, engine,
+                truePositives, falsePositives, trueNegatives, falseNegatives, accuracy, precision, recall, f1);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.io.Reader;
+
+public class CsvEmailSource implements EmailSource {
+    private final CsvReader reader;
+    private boolean headerChecked;
+
+    public CsvEmailSource(Reader reader) {
+        this.reader = new CsvReader(reader);
+    }
+
+    @Override
+    public Email next() throws IOException {
+        while (reader.nextRecord()) {
+            // Skip the header row if present (body,sender,subject[,class])
+            if (!headerChecked) {
+                headerChecked = true;
+                if (reader.fieldCount() >= 3 && reader.fieldEquals(0, "body")) {
+                    continue;
+                }
+            }
+
+            // Same column layout as training_data.csv
+            if (reader.fieldCount() >= 3) {
+                String body = reader.fieldAsString(0);
+                String sender = reader.fieldAsString(1);
+                String subject = reader.fieldAsString(2);
+                return new Email(sender, subject, body);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+// Single-pass RFC 4180 CSV reader. Quoted fields may contain commas, line
+// breaks and doubled quotes. Fields of the current record are exposed as
+// CharSequence views over a reused char buffer and stay valid until the
+// next call to nextRecord().
+public class CsvReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+
+    private char[] chars = new char[1024];
+    private int length;
+    private int[] fieldEnds = new int[8];
+    private FieldView[] views = new FieldView[8];
+    private int fieldCount;
+    private long recordNumber;
+
+    public CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Reads the next record; returns false at end of input
+    public boolean nextRecord() throws IOException {
+        length = 0;
+        fieldCount = 0;
+        int c = read();
+        if (c < 0) {
+            return false;
+        }
+
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c < 0) {
+                    // Unterminated quote: keep what we have
+                    endField();
+                    break;
+                }
+                if (c == '"') {
+                    int next = read();
+                    if (next == '"') {
+                        append('"');
+                    } else {
+                        quoted = false;
+                        c = next;
+                        continue;
+                    }
+                } else {
+                    append((char) c);
+                }
+            } else if (c < 0 || c == '\n') {
+                endField();
+                break;
+            } else if (c == '\r') {
+                endField();
+                if (peek() == '\n') {
+                    read();
+                }
+                break;
+            } else if (c == ',') {
+                endField();
+            } else if (c == '"' && length == fieldStart()) {
+                quoted = true;
+            } else {
+                append((char) c);
+            }
+            c = read();
+        }
+        recordNumber++;
+        return true;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public long recordNumber() {
+        return recordNumber;
+    }
+
+    public CharSequence field(int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + fieldCount);
+        }
+        FieldView view = views[index];
+        if (view == null) {
+            view = views[index] = new FieldView();
+        }
+        view.start = index == 0 ? 0 : fieldEnds[index - 1];
+        view.end = fieldEnds[index];
+        return view;
+    }
+
+    public String fieldAsString(int index) {
+        int start = index == 0 ? 0 : fieldEnds[index - 1];
+        return new String(chars, start, fieldEnds[index] - start);
+    }
+
+    // Compares a field with value after trimming surrounding whitespace
+    public boolean fieldEquals(int index, String value) {
+        int start = index == 0 ? 0 : fieldEnds[index - 1];
+        int end = fieldEnds[index];
+        while (start < end && chars[start] <= ' ') {
+            start++;
+        }
+        while (end > start && chars[end - 1] <= ' ') {
+            end--;
+        }
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (chars[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private int fieldStart() {
+        return fieldCount == 0 ? 0 : fieldEnds[fieldCount - 1];
+    }
+
+    private void endField() {
+        if (fieldCount == fieldEnds.length) {
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            views = Arrays.copyOf(views, fieldCount * 2);
+        }
+        fieldEnds[fieldCount++] = length;
+    }
+
+    private void append(char c) {
+        if (length == chars.length) {
+            chars = Arrays.copyOf(chars, length * 2);
+        }
+        chars[length++] = c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        int read;
+        do {
+            read = reader.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private final class FieldView implements CharSequence {
+        private int start;
+        private int end;
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(chars, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, start, end - start);
+        }
+    }
+}
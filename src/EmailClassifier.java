@@ -1,34 +1,439 @@
-import java.util.HashMap;
-import java.util.Map;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class EmailClassifier {
-    private Set<String> spamKeywords;
-    private Set<String> spamSubjectPhrases;
+    public static final int SPAM_THRESHOLD = 6;
+    
+    // Training vocabulary; only touched by the constructor and by learn()
+    private TokenDictionary spamKeywords;
+    private TokenDictionary spamSubjectPhrases;
+    private final StringBuilder token = new StringBuilder();
+    private NaiveBayesModel bayesModel;
+    private ModelSnapshot vocabularySource;
+    
+    // Published model used by classification; replaced as a whole on learn()
+    private volatile ClassifierModel model;
+    
+    // Optional result cache; it drops its entries when the model changes
+    private volatile ClassificationCache cache;
+    
+    // Senders with at least this many one-sided messages in the model's
+    // reputation get a verdict without scoring; 0 turns this off
+    private volatile int reputationMinEvidence;
+    
+    // Whether an all-ham sender domain may decide a ham verdict; off unless
+    // the sender is authenticated upstream
+    private volatile boolean reputationDomainHam;
+    
+    // Corrections learned since the last publish. They go into private
+    // copies of the Bayes table and reputation, which are published together
+    // after LEARN_BATCH corrections or LEARN_PUBLISH_MILLIS, whichever comes
+    // first; the automata are rebuilt once per publish, not per correction.
+    // Guarded by this.
+    private static final int LEARN_BATCH = Integer.getInteger("spamfilter.learn.batch", 64);
+    private static final long LEARN_PUBLISH_MILLIS = Long.getLong("spamfilter.learn.publishMillis", 200);
+    private NaiveBayesModel learningBayes;
+    private SenderReputation learningReputation;
+    private boolean keywordsGrew;
+    private boolean subjectPhrasesGrew;
+    private int pendingCorrections;
+    private ScheduledExecutorService learnPublisher;
+    
+    // Corrections learned while reload() is loading, replayed onto the
+    // loaded model; null when no reload is running. Guarded by this.
+    private List<Correction> reloadJournal;
+    private final Object reloadLock = new Object();
+    
+    // The file saveModel() last wrote and its modification time, so a
+    // ModelReloader can tell this classifier's own saves from other writers'.
+    // Guarded by this.
+    private Path savedModel;
+    private FileTime savedModelTime;
+    
+    public static final String DEFAULT_TRAINING_DATA = "data/training_data.csv";
+    public static final String DEFAULT_MODEL = "data/model.bin";
+    
+    // Training rows whose scores the calibration is fitted to
+    static final int CALIBRATION_ROWS = 10_000;
     
     public EmailClassifier(String trainingDataPath) throws Exception {
+        this(trainingDataPath, ShardedTrainer.defaultThreads());
+    }
+    
+    // Trains with up to threads workers; the model does not depend on the count
+    public EmailClassifier(String trainingDataPath, int threads) throws Exception {
+        this(trainingDataPath, threads, ClassifierLoader.Progress.NONE);
+    }
+    
+    EmailClassifier(String trainingDataPath, int threads, ClassifierLoader.Progress progress) {
         System.out.println("Initializing content-based classifier...");
+        long start = System.nanoTime();
         
-        // Initialize collections
-        spamKeywords = new HashSet<>();
-        spamSubjectPhrases = new HashSet<>();
-        
-        // Add common spam keywords
-        addDefaultSpamKeywords();
+        // Common spam keywords come first, then the training data
+        TrainingPartial training = defaultVocabulary();
+        training.merge(loadTrainingData(trainingDataPath, threads, progress));
+        progress.update("Building matchers", -1);
+        initialize(training, start);
+        progress.update("Calibrating scores", -1);
+        calibrate(trainingDataPath);
+    }
+    
+    // Builds the model from partials trained elsewhere, e.g. on other
+    // machines' files, as if their rows had been read in list order
+    public EmailClassifier(List<TrainingPartial> partials) {
+        System.out.println("Initializing content-based classifier...");
+        long start = System.nanoTime();
+        TrainingPartial training = defaultVocabulary();
+        for (TrainingPartial partial : partials) {
+            training.merge(partial);
+        }
+        initialize(training, start);
+    }
+    
+    // The model the partials constructor would publish, built without its
+    // report or training metrics, so that many can be built at once, e.g.
+    // one per cross-validation fold
+    static ClassifierModel buildModel(List<TrainingPartial> partials) {
+        TrainingPartial training = defaultVocabulary();
+        for (TrainingPartial partial : partials) {
+            training.merge(partial);
+        }
+        return new ClassifierModel(new AhoCorasickMatcher(training.keywords()),
+                new AhoCorasickMatcher(training.subjectPhrases()), training.bayesModel().complete(),
+                training.reputation(), ScoreCalibration.DEFAULT, 0);
+    }
+    
+    private void initialize(TrainingPartial training, long start) {
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+        spamKeywords = training.keywords();
+        spamSubjectPhrases = training.subjectPhrases();
+        bayesModel = training.bayesModel().complete();
+        SenderReputation reputation = training.reputation();
         
-        // Load training data
-        loadTrainingData(trainingDataPath);
+        // Compile keyword sets into single-pass matchers
+        long compileStart = System.nanoTime();
+        model = new ClassifierModel(new AhoCorasickMatcher(spamKeywords),
+                new AhoCorasickMatcher(spamSubjectPhrases), bayesModel, reputation, ScoreCalibration.DEFAULT, 0);
+        long end = System.nanoTime();
+        metrics.recordTrainingStage("automaton build", end - compileStart);
+        metrics.recordTrainingStage("total", end - start);
         
         System.out.println("Classifier initialized with:");
         System.out.println("- " + spamKeywords.size() + " spam keywords");
         System.out.println("- " + spamSubjectPhrases.size() + " spam subject phrases");
+        System.out.println("- " + bayesModel.vocabularySize() + " Naive Bayes tokens");
+        System.out.println("- " + reputation.addresses() + " sender addresses from " + reputation.domains() + " domains");
+    }
+    
+    private EmailClassifier(ModelSnapshot snapshot) {
+        spamKeywords = new TokenDictionary();
+        spamSubjectPhrases = new TokenDictionary();
+        bayesModel = snapshot.bayesModel();
+        model = new ClassifierModel(snapshot.keywordMatcher(), snapshot.subjectPhraseMatcher(), bayesModel,
+                snapshot.reputation(), snapshot.calibration(), 0);
+        // Keyword strings stay in the mapped file until something needs them
+        vocabularySource = snapshot;
+    }
+    
+    // Loads the compiled model if it is present and newer than the training
+    // data, otherwise trains from the CSV and writes a fresh model file. The
+    // classifier gets a result cache and sender verdicts configured by
+    // system properties.
+    public static EmailClassifier load(String trainingDataPath, String modelPath) throws Exception {
+        return load(trainingDataPath, modelPath, ClassifierLoader.Progress.NONE);
+    }
+    
+    // As load(), reporting each stage to progress
+    public static EmailClassifier load(String trainingDataPath, String modelPath,
+                                       ClassifierLoader.Progress progress) throws Exception {
+        EmailClassifier classifier = loadModel(trainingDataPath, modelPath, progress);
+        classifier.setCache(ClassificationCache.fromSystemProperties());
+        classifier.setReputationMinEvidence(SenderReputation.minEvidenceFromSystemProperties());
+        classifier.setReputationDomainHam(SenderReputation.domainHamFromSystemProperties());
+        return classifier;
+    }
+    
+    private static EmailClassifier loadModel(String trainingDataPath, String modelPath,
+                                             ClassifierLoader.Progress progress) throws Exception {
+        Path training = Paths.get(trainingDataPath);
+        Path model = Paths.get(modelPath);
+        if (Files.exists(model) && (!Files.exists(training)
+                || !Files.getLastModifiedTime(model).toInstant().isBefore(Files.getLastModifiedTime(training).toInstant()))) {
+            try {
+                progress.update("Loading compiled model", -1);
+                long start = System.nanoTime();
+                EmailClassifier classifier = new EmailClassifier(ModelSnapshot.read(model));
+                long elapsed = System.nanoTime() - start;
+                ClassifierMetrics.get().recordTrainingStage("snapshot load", elapsed);
+                System.out.printf("Loaded compiled model %s in %.1f ms (%d keywords, %d subject phrases, %d Naive Bayes tokens)%n",
+                        model, elapsed / 1e6, classifier.model.keywordMatcher().size(),
+                        classifier.model.subjectPhraseMatcher().size(), classifier.bayesModel.vocabularySize());
+                return classifier;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Warning: Could not load compiled model, retraining: " + e.getMessage());
+            }
+        }
+        
+        EmailClassifier classifier = new EmailClassifier(trainingDataPath, ShardedTrainer.defaultThreads(), progress);
+        try {
+            progress.update("Writing compiled model", -1);
+            classifier.saveModel(model);
+        } catch (IOException e) {
+            System.out.println("Warning: Could not write compiled model: " + e.getMessage());
+        }
+        return classifier;
+    }
+    
+    public synchronized void saveModel(Path modelPath) throws IOException {
+        long start = System.nanoTime();
+        ensureVocabulary();
+        publishLearned();
+        ClassifierModel current = model;
+        ModelSnapshot.write(modelPath, spamKeywords, spamSubjectPhrases, current);
+        savedModel = modelPath.toAbsolutePath().normalize();
+        savedModelTime = Files.getLastModifiedTime(modelPath);
+        ClassifierMetrics.get().recordTrainingStage("snapshot write", System.nanoTime() - start);
+    }
+    
+    // Whether modelPath, modified at time, is the file saveModel() last wrote
+    public synchronized boolean savedModel(Path modelPath, FileTime time) {
+        return time != null && time.equals(savedModelTime)
+                && modelPath.toAbsolutePath().normalize().equals(savedModel);
+    }
+    
+    // Loads the model again as load() does: from the compiled model if it is
+    // current, otherwise by training on the CSV. The result is published as
+    // the next version with one reference swap. Loading runs on the calling
+    // thread without the lock, so classification and learn() go on in the
+    // meantime. Calls already running finish on the model they started with.
+    // Feedback learned during the load is replayed onto the loaded model;
+    // feedback from before the load is replaced. Reloads run one at a time.
+    // Returns the new version.
+    public long reload(String trainingDataPath, String modelPath) throws Exception {
+        synchronized (reloadLock) {
+            long start = System.nanoTime();
+            synchronized (this) {
+                reloadJournal = new ArrayList<>();
+            }
+            try {
+                EmailClassifier loaded = loadModel(trainingDataPath, modelPath, ClassifierLoader.Progress.NONE);
+                NaiveBayesModel loadedBayes = loaded.bayesModel;
+                if (loadedBayes.spamMessages() + loadedBayes.hamMessages() == 0) {
+                    throw new IOException("No training data found; keeping model version " + model.version());
+                }
+                long version = publish(loaded);
+                ClassifierMetrics.get().recordReload(System.nanoTime() - start, version);
+                return version;
+            } finally {
+                synchronized (this) {
+                    reloadJournal = null;
+                }
+            }
+        }
     }
     
-    private void addDefaultSpamKeywords() {
+    private synchronized long publish(EmailClassifier loaded) {
+        List<Correction> replay = reloadJournal;
+        reloadJournal = null;
+        discardLearned();
+        spamKeywords = loaded.spamKeywords;
+        spamSubjectPhrases = loaded.spamSubjectPhrases;
+        vocabularySource = loaded.vocabularySource;
+        bayesModel = loaded.bayesModel;
+        ClassifierModel next = loaded.model;
+        // Versions only grow, so the cache drops its entries for the old model
+        long version = model.version() + 1;
+        model = new ClassifierModel(next.keywordMatcher(), next.subjectPhraseMatcher(), next.bayesModel(),
+                next.reputation(), next.calibration(), version);
+        if (replay != null && !replay.isEmpty()) {
+            for (Correction correction : replay) {
+                learn(correction.email, correction.spam);
+            }
+            publishLearned();
+        }
+        return model.version();
+    }
+    
+    public ClassifierModel currentModel() {
+        return model;
+    }
+    
+    // Caches rule scores and Naive Bayes probabilities by message content;
+    // null turns caching off
+    public void setCache(ClassificationCache cache) {
+        this.cache = cache;
+    }
+    
+    public ClassificationCache cache() {
+        return cache;
+    }
+    
+    // Lets senders with at least minEvidence messages, all spam or all ham,
+    // be classified by their history alone; 0 turns this off
+    public void setReputationMinEvidence(int minEvidence) {
+        this.reputationMinEvidence = minEvidence;
+    }
+    
+    // Lets a domain whose messages were all ham vouch for any of its
+    // senders. Off by default: From addresses can be forged, so only turn
+    // it on when senders are authenticated before classification.
+    public void setReputationDomainHam(boolean domainHam) {
+        this.reputationDomainHam = domainHam;
+    }
+    
+    public SenderReputation reputation() {
+        return model.reputation();
+    }
+    
+    // Adds a labelled email to the model while other threads keep classifying.
+    // Learners are serialized; corrections are applied to private copies of
+    // the tables and published with a single volatile write, so readers never
+    // block and never see a partially updated model. Copying the tables and
+    // rebuilding the automata costs time in the size of the model, so
+    // corrections are published in batches: within LEARN_PUBLISH_MILLIS, or
+    // at once when LEARN_BATCH are pending. publishLearned() publishes
+    // without waiting. Ham feedback only affects the Naive Bayes statistics
+    // and the sender reputation, since the rules only know spam keywords.
+    public synchronized void learn(Email email, boolean isSpam) {
+        long start = System.nanoTime();
+        if (reloadJournal != null) {
+            reloadJournal.add(new Correction(email, isSpam));
+        }
+        ensureVocabulary();
+        String subject = email.getSubject().toLowerCase();
+        String body = email.getBody().toLowerCase();
+        MessageFeatures features = new MessageFeatures().extract(subject, body, true);
+        
+        if (pendingCorrections == 0) {
+            ClassifierModel current = model;
+            learningBayes = bayesModel.copy();
+            learningReputation = current.reputation().copy();
+        }
+        learningBayes.train(features, isSpam);
+        learningReputation.add(email.getSender(), isSpam);
+        
+        if (isSpam) {
+            int keywordCount = spamKeywords.size();
+            int phraseCount = spamSubjectPhrases.size();
+            extractKeywords(features.body(), 3, spamKeywords, token);
+            extractSubjectPhrases(subject, features.subject(), spamSubjectPhrases, token);
+            // Only recompile the automata whose vocabulary actually grew
+            keywordsGrew |= spamKeywords.size() != keywordCount;
+            subjectPhrasesGrew |= spamSubjectPhrases.size() != phraseCount;
+        }
+        
+        pendingCorrections++;
+        if (pendingCorrections >= LEARN_BATCH || LEARN_PUBLISH_MILLIS <= 0) {
+            publishLearned();
+        } else if (pendingCorrections == 1) {
+            schedulePublish();
+        }
+        ClassifierMetrics.get().recordTrainingStage("learn (last update)", System.nanoTime() - start);
+    }
+    
+    // Publishes the corrections learn() is holding back, if any
+    public synchronized void publishLearned() {
+        if (pendingCorrections == 0) {
+            return;
+        }
+        ClassifierModel current = model;
+        AhoCorasickMatcher keywordMatcher = keywordsGrew
+            ? new AhoCorasickMatcher(spamKeywords) : current.keywordMatcher();
+        AhoCorasickMatcher subjectPhraseMatcher = subjectPhrasesGrew
+            ? new AhoCorasickMatcher(spamSubjectPhrases) : current.subjectPhraseMatcher();
+        bayesModel = learningBayes;
+        model = new ClassifierModel(keywordMatcher, subjectPhraseMatcher, learningBayes, learningReputation,
+                current.calibration(), current.version() + 1);
+        discardLearned();
+        ClassifierMetrics.get().recordModelVersion(current.version() + 1);
+    }
+    
+    private void discardLearned() {
+        learningBayes = null;
+        learningReputation = null;
+        keywordsGrew = false;
+        subjectPhrasesGrew = false;
+        pendingCorrections = 0;
+    }
+    
+    private void schedulePublish() {
+        if (learnPublisher == null) {
+            learnPublisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "learn-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        learnPublisher.schedule(this::publishLearned, LEARN_PUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    // Fits the score calibration to the rule scores of the first
+    // CALIBRATION_ROWS training rows. Their own keywords are in the model,
+    // so their scores are inflated: ham there scores as high as spam does
+    // elsewhere, and a free fit would put 50% far above the threshold. Only
+    // the slope is fitted, with 50% held between SPAM_THRESHOLD and the
+    // score below it, so the probability never contradicts the verdict.
+    // ThresholdSweep shows how scores fare on other mail.
+    private void calibrate(String trainingDataPath) {
+        long start = System.nanoTime();
+        ClassifierModel current = model;
+        long[] spam = new long[ScoreCalibration.SCORE_BUCKETS];
+        long[] ham = new long[ScoreCalibration.SCORE_BUCKETS];
+        MessageFeatures features = new MessageFeatures();
+        // Decoded like training reads the file
+        try (CsvReader reader = new CsvReader(new InputStreamReader(
+                Files.newInputStream(Paths.get(trainingDataPath)), Charset.defaultCharset()))) {
+            reader.nextRecord(); // Skip header
+            int rows = 0;
+            while (rows < CALIBRATION_ROWS && reader.nextRecord()) {
+                if (reader.fieldCount() >= 4) {
+                    features.extract(reader.field(2), reader.field(0), false);
+                    int score = ScoreCalibration.bucket(current.scoreEmail(features, false));
+                    if (reader.fieldEquals(3, "spam")) {
+                        spam[score]++;
+                    } else {
+                        ham[score]++;
+                    }
+                    rows++;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Warning: Could not calibrate scores: " + e.getMessage());
+            return;
+        } finally {
+            features.release();
+        }
+        ScoreCalibration calibration = ScoreCalibration.fitThrough(spam, ham, SPAM_THRESHOLD - 0.5);
+        model = new ClassifierModel(current.keywordMatcher(), current.subjectPhraseMatcher(), current.bayesModel(),
+                current.reputation(), calibration, current.version());
+        ClassifierMetrics.get().recordTrainingStage("score calibration", System.nanoTime() - start);
+        System.out.println("- score calibration " + calibration);
+    }
+    
+    private void ensureVocabulary() {
+        if (vocabularySource != null) {
+            vocabularySource.readKeywords(spamKeywords);
+            vocabularySource.readSubjectPhrases(spamSubjectPhrases);
+            vocabularySource = null;
+        }
+    }
+    
+    private static TrainingPartial defaultVocabulary() {
+        TrainingPartial defaults = new TrainingPartial();
+        TokenDictionary spamKeywords = defaults.keywords();
+        TokenDictionary spamSubjectPhrases = defaults.subjectPhrases();
+        
         // Money-related terms
         spamKeywords.add("cash");
         spamKeywords.add("money");
@@ -101,80 +506,58 @@ public class EmailClassifier {
         spamSubjectPhrases.add("claim");
         spamSubjectPhrases.add("opportunity");
         spamSubjectPhrases.add("buy now");
+        return defaults;
     }
     
-    private void loadTrainingData(String filePath) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line = reader.readLine(); // Skip header
-            int spamCount = 0;
-            int hamCount = 0;
+    private static TrainingPartial loadTrainingData(String filePath, int threads, ClassifierLoader.Progress progress) {
+        try {
+            TrainingPartial loaded = ShardedTrainer.train(Paths.get(filePath), threads, progress);
             
-            while ((line = reader.readLine()) != null) {
-                // Simple CSV parsing (doesn't handle all edge cases)
-                String[] parts = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)", -1);
-                
-                if (parts.length >= 4) {
-                    // Remove quotes if present
-                    String body = parts[0].replaceAll("^\"|\"$", "").toLowerCase();
-                    String subject = parts[2].replaceAll("^\"|\"$", "").toLowerCase();
-                    String classValue = parts[3].trim();
-                    
-                    if ("spam".equals(classValue)) {
-                        spamCount++;
-                        // Extract potential keywords from spam emails
-                        extractKeywords(body, 3);
-                        
-                        // Extract subject phrases
-                        extractSubjectPhrases(subject);
-                    } else {
-                        hamCount++;
-                    }
-                }
-            }
-            
-            System.out.println("Loaded " + spamCount + " spam and " + hamCount + " ham examples from training data");
+            // Per-stage time spent, summed over shards, reported through ClassifierMetrics
+            ClassifierMetrics metrics = ClassifierMetrics.get();
+            metrics.recordTrainingStage("csv parse", loaded.parseNanos());
+            metrics.recordTrainingStage("naive bayes training", loaded.bayesNanos());
+            metrics.recordTrainingStage("keyword extraction", loaded.extractNanos());
             
+            System.out.println("Loaded " + loaded.spamRows() + " spam and " + loaded.hamRows() + " ham examples from training data");
+            return loaded;
         } catch (IOException e) {
             System.out.println("Warning: Could not fully process training data: " + e.getMessage());
+            return new TrainingPartial();
         }
     }
     
-    private void extractKeywords(String text, int minLength) {
-        // Very simple keyword extraction - split by spaces and punctuation
-        String[] words = text.split("\\s+|\\p{Punct}");
-        for (String word : words) {
-            word = word.trim().toLowerCase();
-            if (word.length() >= minLength && !word.matches(".*\\d.*")) {
-                spamKeywords.add(word);
+    static void extractKeywords(TokenizedText text, int minLength, TokenDictionary spamKeywords, StringBuilder token) {
+        // Very simple keyword extraction - words between spaces and punctuation
+        for (int i = 0; i < text.unigramCount(); i++) {
+            if (text.unigramLength(i) >= minLength && !text.unigramHasDigit(i)) {
+                token.setLength(0);
+                spamKeywords.add(text.appendUnigram(i, token));
             }
         }
         
         // Also extract phrases (2-3 word combinations)
-        String[] textWords = text.split("\\s+");
-        for (int i = 0; i < textWords.length - 1; i++) {
-            String twoWordPhrase = textWords[i].toLowerCase() + " " + textWords[i+1].toLowerCase();
-            twoWordPhrase = twoWordPhrase.replaceAll("[^a-z\\s]", "").trim();
-            if (twoWordPhrase.length() >= 5) {
-                spamKeywords.add(twoWordPhrase);
+        int words = text.wordCount();
+        for (int i = 0; i < words - 1; i++) {
+            if (text.ngramLength(i, 2) >= 5) {
+                token.setLength(0);
+                spamKeywords.add(text.appendNgram(i, 2, token));
             }
             
-            if (i < textWords.length - 2) {
-                String threeWordPhrase = twoWordPhrase + " " + textWords[i+2].toLowerCase();
-                threeWordPhrase = threeWordPhrase.replaceAll("[^a-z\\s]", "").trim();
-                if (threeWordPhrase.length() >= 8) {
-                    spamKeywords.add(threeWordPhrase);
-                }
+            if (i < words - 2 && text.ngramLength(i, 3) >= 8) {
+                token.setLength(0);
+                spamKeywords.add(text.appendNgram(i, 3, token));
             }
         }
     }
     
-    private void extractSubjectPhrases(String subject) {
+    static void extractSubjectPhrases(String subject, TokenizedText words, TokenDictionary spamSubjectPhrases,
+                                      StringBuilder token) {
         // Extract individual words
-        String[] words = subject.split("\\s+");
-        for (String word : words) {
-            word = word.trim().toLowerCase().replaceAll("[^a-z]", "");
-            if (word.length() >= 4) {
-                spamSubjectPhrases.add(word);
+        for (int i = 0; i < words.wordCount(); i++) {
+            if (words.wordLength(i) >= 4) {
+                token.setLength(0);
+                spamSubjectPhrases.add(words.appendNgram(i, 1, token));
             }
         }
         
@@ -185,41 +568,139 @@ public class EmailClassifier {
     }
     
     public double classifyEmail(Email email) {
-        // Check subject for spam phrases
-        String subject = email.getSubject().toLowerCase();
-        int subjectSpamScore = 0;
-        for (String phrase : spamSubjectPhrases) {
-            if (subject.contains(phrase)) {
-                subjectSpamScore += 2;
-            }
+        // Only the verdict is needed, so scoring stops once it is decided
+        return isSpam(email) ? 1.0 : 0.0;
+    }
+    
+    public boolean isSpam(Email email) {
+        // One read of the model, so a concurrent swap cannot mix versions
+        ClassifierModel current = model;
+        int sender = senderVerdict(current, email.getSender());
+        if (SenderReputation.isDecided(sender)) {
+            return SenderReputation.isSpam(sender);
         }
-        
-        // Check body for spam keywords
-        String body = email.getBody().toLowerCase();
-        int bodySpamScore = 0;
-        for (String keyword : spamKeywords) {
-            if (body.contains(keyword)) {
-                bodySpamScore++;
-            }
+        ClassificationCache results = cache;
+        return results == null ? current.isSpam(email) : results.isSpam(current, email);
+    }
+    
+    public double classifyEmail(Email email, FeatureScorer scorer) {
+        // The built-in engines go through the cache
+        if (scorer == ScoringEngine.RULES) {
+            return classifyEmail(email);
         }
-        
-        // Additional checks for common spam patterns
-        if (body.matches(".*\\$\\d+.*")) {  // Contains dollar amounts
-            bodySpamScore += 2;
+        ClassifierModel current = model;
+        int sender = senderVerdict(current, email.getSender());
+        if (SenderReputation.isDecided(sender)) {
+            return SenderReputation.isSpam(sender) ? 1.0 : 0.0;
         }
-        
-        if (subject.matches(".*[!]{2,}.*")) {  // Multiple exclamation marks
-            subjectSpamScore += 1;
+        if (scorer == ScoringEngine.NAIVE_BAYES) {
+            ClassificationCache results = cache;
+            return results == null ? current.spamProbability(email) : results.spamProbability(current, email);
         }
-        
-        if (subject.toUpperCase().equals(subject) && subject.length() > 10) {  // ALL CAPS subject
-            subjectSpamScore += 2;
+        MessageFeatures features = MessageFeatures.of(email, scorer.usesTokens());
+        try {
+            return scorer.score(current, features);
+        } finally {
+            features.release();
         }
+    }
+    
+    // Reputation lookup ahead of content scoring. It comes before the cache,
+    // whose key leaves the sender out. Callers that score against a model
+    // they hold pass the same model here and decide with SpamScore.isSpam().
+    public int senderVerdict(ClassifierModel current, CharSequence sender) {
+        int minEvidence = reputationMinEvidence;
+        if (minEvidence <= 0) {
+            return SenderReputation.UNKNOWN;
+        }
+        int result = current.reputation().lookup(sender, minEvidence, reputationDomainHam);
+        ClassifierMetrics.get().recordReputationLookup(result);
+        return result;
+    }
+    
+    // Rule score, calibrated probability and sender verdict in one result, so
+    // callers can apply several thresholds without classifying twice. The
+    // content is always scored, even when the sender decides the verdict.
+    // With contributions the result also lists what each feature added;
+    // that builds a string per match and bypasses the cache.
+    public SpamScore score(Email email, boolean contributions) {
+        ClassifierModel current = model;
+        int sender = senderVerdict(current, email.getSender());
+        if (!contributions) {
+            ClassificationCache results = cache;
+            int score = results == null ? current.scoreEmail(email) : results.scoreEmail(current, email);
+            return new SpamScore(score, current.calibration().probability(score), sender, null);
+        }
+        MessageFeatures features = MessageFeatures.of(email, false);
+        try {
+            List<SpamScore.Contribution> parts = current.contributions(features);
+            int score = 0;
+            for (SpamScore.Contribution part : parts) {
+                score += part.points();
+            }
+            return new SpamScore(score, current.calibration().probability(score), sender, parts);
+        } finally {
+            features.release();
+        }
+    }
+    
+    // Scores the email with every scorer in the pipeline from one tokenization
+    public double[] classifyEmail(Email email, FeaturePipeline pipeline) {
+        return pipeline.score(model, email);
+    }
+    
+    public double spamProbability(Email email) {
+        ClassificationCache results = cache;
+        ClassifierModel current = model;
+        return results == null ? current.spamProbability(email) : results.spamProbability(current, email);
+    }
+    
+    // Verdict for a body read in chunks from a Reader, for bodies too large
+    // to hold as one String. At most limit characters are read
+    // (StreamingScorer.NO_LIMIT for all). Streamed bodies bypass the cache.
+    public boolean isSpam(String subject, Reader body, long limit) throws IOException {
+        return new StreamingScorer(model).isSpam(subject, body, limit);
+    }
+    
+    public int scoreEmail(String subject, Reader body, long limit) throws IOException {
+        return new StreamingScorer(model).score(subject, body, limit);
+    }
+    
+    // Full rule score, for callers that need the number and not just the
+    // verdict. Scores come from the content alone; the sender is not consulted.
+    public int scoreEmail(Email email) {
+        ClassificationCache results = cache;
+        ClassifierModel current = model;
+        return results == null ? current.scoreEmail(email) : results.scoreEmail(current, email);
+    }
+    
+    // As score(email, false), reading the fields straight from the encoded
+    // buffer
+    public SpamScore score(EncodedEmail email) {
+        ClassifierModel current = model;
+        int sender = senderVerdict(current, email.sender());
+        ClassificationCache results = cache;
+        int score = results == null ? current.scoreEmail(email.subject(), email.body())
+                : results.scoreEmail(current, email.subject(), email.body());
+        return new SpamScore(score, current.calibration().probability(score), sender, null);
+    }
+    
+    // Scores the fields straight from the encoded buffer
+    public int scoreEmail(EncodedEmail email) {
+        ClassificationCache results = cache;
+        ClassifierModel current = model;
+        return results == null ? current.scoreEmail(email.subject(), email.body())
+                : results.scoreEmail(current, email.subject(), email.body());
+    }
+    
+    // One learn() call, kept for replay after a reload
+    private static final class Correction {
+        final Email email;
+        final boolean spam;
         
-        // Calculate final spam score with higher weight on subject
-        int totalScore = bodySpamScore + (subjectSpamScore * 2);
-        
-        // Classify based on threshold
-        return (totalScore >= 6) ? 1.0 : 0.0;
+        Correction(Email email, boolean spam) {
+            this.email = email;
+            this.spam = spam;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,7 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface EmailSource extends Closeable {
+    // Returns the next email, or null once the input is exhausted
+    Email next() throws IOException;
+}
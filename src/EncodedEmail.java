@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compact binary form of an Email for queues and spill files, and a view
+// over it. Layout (big-endian), for sender, subject and body in turn:
+//   int byte length, int char length, UTF-8 bytes
+// Fields are exposed as CharSequence views over the buffer, so scoring
+// reads them without creating Strings. A field whose char length equals
+// its byte length is ASCII and charAt() reads its bytes directly; other
+// fields are decoded into a char buffer on first use. Unpaired surrogates
+// are encoded as '?', as String.getBytes() does.
+//
+// The views read the buffer they were wrapped around, so it must not be
+// reused while they are in use. One instance is meant for one thread at a
+// time.
+public final class EncodedEmail {
+    private static final int FIELD_HEADER = 2 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int length;
+    private final Field sender;
+    private final Field subject;
+    private final Field body;
+
+    private EncodedEmail(ByteBuffer buffer) {
+        this.buffer = buffer;
+        int offset = buffer.position();
+        sender = field(buffer, offset);
+        subject = field(buffer, sender.end());
+        body = field(buffer, subject.end());
+        length = body.end() - offset;
+    }
+
+    // Views the encoded email starting at record's position; throws
+    // IllegalArgumentException if the lengths do not fit in the buffer
+    public static EncodedEmail wrap(ByteBuffer record) {
+        return new EncodedEmail(record);
+    }
+
+    public static int encodedLength(Email email) {
+        return 3 * FIELD_HEADER + utf8Length(email.getSender()) + utf8Length(email.getSubject())
+            + utf8Length(email.getBody());
+    }
+
+    // Writes email at out's position and advances it; throws
+    // BufferOverflowException if it does not fit
+    public static void encode(Email email, ByteBuffer out) {
+        encodeField(email.getSender(), out);
+        encodeField(email.getSubject(), out);
+        encodeField(email.getBody(), out);
+    }
+
+    // The encoding in a new heap buffer, ready to be read
+    public static ByteBuffer encode(Email email) {
+        ByteBuffer out = ByteBuffer.allocate(encodedLength(email));
+        encode(email, out);
+        return out.flip();
+    }
+
+    // Bytes taken by the encoding
+    public int length() {
+        return length;
+    }
+
+    public CharSequence sender() {
+        return sender;
+    }
+
+    public CharSequence subject() {
+        return subject;
+    }
+
+    public CharSequence body() {
+        return body;
+    }
+
+    public Email toEmail() {
+        return new Email(sender.toString(), subject.toString(), body.toString());
+    }
+
+    @Override
+    public String toString() {
+        return toEmail().toString();
+    }
+
+    private static Field field(ByteBuffer buffer, int offset) {
+        if (offset < 0 || buffer.limit() - offset < FIELD_HEADER) {
+            throw new IllegalArgumentException("Truncated email at offset " + offset);
+        }
+        int bytes = buffer.getInt(offset);
+        int chars = buffer.getInt(offset + Integer.BYTES);
+        int start = offset + FIELD_HEADER;
+        if (bytes < 0 || chars < 0 || chars > bytes || bytes > buffer.limit() - start) {
+            throw new IllegalArgumentException("Bad field lengths at offset " + offset + ": "
+                + bytes + " bytes, " + chars + " chars");
+        }
+        return new Field(buffer, start, bytes, chars);
+    }
+
+    private static int utf8Length(String text) {
+        int bytes = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    private static void encodeField(String text, ByteBuffer out) {
+        int headerAt = out.position();
+        out.position(headerAt + FIELD_HEADER);
+        int start = out.position();
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (!Character.isSurrogate(c)) {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                out.put((byte) '?');
+            }
+        }
+        out.putInt(headerAt, out.position() - start);
+        out.putInt(headerAt + Integer.BYTES, text.length());
+    }
+
+    private static final class Field implements CharSequence {
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int bytes;
+        private final int chars;
+        private CharBuffer decoded;
+
+        Field(ByteBuffer buffer, int start, int bytes, int chars) {
+            this.buffer = buffer;
+            this.start = start;
+            this.bytes = bytes;
+            this.chars = chars;
+        }
+
+        int end() {
+            return start + bytes;
+        }
+
+        private boolean isAscii() {
+            return bytes == chars;
+        }
+
+        private CharBuffer decoded() {
+            CharBuffer text = decoded;
+            if (text == null) {
+                text = StandardCharsets.UTF_8.decode(buffer.duplicate().limit(start + bytes).position(start));
+                decoded = text;
+            }
+            return text;
+        }
+
+        @Override
+        public int length() {
+            return chars;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= chars) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + chars);
+            }
+            return isAscii() ? (char) buffer.get(start + index) : decoded().get(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > chars || from > to) {
+                throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + chars);
+            }
+            return isAscii() ? new Field(buffer, start + from, to - from, to - from) : decoded().subSequence(from, to);
+        }
+
+        @Override
+        public String toString() {
+            if (isAscii()) {
+                byte[] ascii = new byte[bytes];
+                buffer.get(start, ascii);
+                return new String(ascii, StandardCharsets.ISO_8859_1);
+            }
+            return decoded().toString();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.Arrays;
+import java.util.List;
+
+// Runs any number of scorers over a message, extracting its features once
+// and sharing them between all of the scorers. Immutable and thread-safe.
+public final class FeaturePipeline {
+    private final FeatureScorer[] scorers;
+    private final boolean tokens;
+
+    public FeaturePipeline(FeatureScorer... scorers) {
+        this(Arrays.asList(scorers));
+    }
+
+    public FeaturePipeline(List<? extends FeatureScorer> scorers) {
+        if (scorers.isEmpty()) {
+            throw new IllegalArgumentException("At least one scorer is required");
+        }
+        this.scorers = scorers.toArray(new FeatureScorer[0]);
+        boolean anyTokens = false;
+        for (FeatureScorer scorer : this.scorers) {
+            anyTokens |= scorer.usesTokens();
+        }
+        tokens = anyTokens;
+    }
+
+    public int size() {
+        return scorers.length;
+    }
+
+    public FeatureScorer scorer(int index) {
+        return scorers[index];
+    }
+
+    // One result per scorer, in the order the scorers were given
+    public double[] score(ClassifierModel model, Email email) {
+        double[] results = new double[scorers.length];
+        MessageFeatures features = MessageFeatures.of(email, tokens);
+        try {
+            for (int i = 0; i < scorers.length; i++) {
+                results[i] = scorers[i].score(model, features);
+            }
+        } finally {
+            features.release();
+        }
+        return results;
+    }
+}
@@ -0,0 +1,13 @@
+// A scorer that can be plugged into a FeaturePipeline. score() is given the
+// features of one message, already extracted, and the model version to use,
+// and returns a spam likelihood on the classifyEmail scale: 0.5 and above
+// means spam. Implementations must not keep the features after returning.
+public interface FeatureScorer {
+    // Whether score() reads unigrams or n-grams. When no scorer in a
+    // pipeline does, only the pattern flags are collected.
+    default boolean usesTokens() {
+        return true;
+    }
+
+    double score(ClassifierModel model, MessageFeatures features);
+}
@@ -4,10 +4,18 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
-import java.util.Random;
+import java.nio.file.Paths;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 public class GUI {
-    private EmailClassifier classifier;
+    private static final String PROMPT = "Enter email details and click 'Classify Email'";
+    // Quiet time after a keystroke before classify-as-you-type re-scores
+    private static final int LIVE_DELAY_MS = 150;
+    
+    private ClassifierLoader loader;
+    // Requests waiting for the classifier to load; only touched on the event thread
+    private int waitingRequests;
     private JFrame frame;
     private JTextField senderField;
     private JTextField subjectField;
@@ -16,6 +24,12 @@ public class GUI {
     private JProgressBar progressBar;
     private JPanel mainPanel;
     private JPanel resultPanel;
+    private JComboBox<ScoringEngine> engineBox;
+    private JCheckBox liveBox;
+    private Timer liveTimer;
+    private SwingWorker<Double, Void> liveWorker;
+    // Shared by live workers; keeps the body's keyword matches between edits
+    private final IncrementalScorer liveScorer = new IncrementalScorer();
     private Color accentColor = new Color(41, 128, 185); // Nice blue color
 
     public GUI() {
@@ -26,20 +40,10 @@ public class GUI {
             e.printStackTrace();
         }
         
-        // Initialize the classifier
-        try {
-            classifier = new EmailClassifier("data/training_data.csv");
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(null, 
-                "Failed to initialize classifier: " + e.getMessage(), 
-                "Error", JOptionPane.ERROR_MESSAGE);
-            System.exit(1);
-        }
-        
         // Create the main frame
         frame = new JFrame("Spam Filter Pro");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setSize(700, 600);
+        frame.setSize(960, 600);
         frame.setLocationRelativeTo(null);
         
         // Set custom icon if available
@@ -88,6 +92,144 @@ public class GUI {
         // Add main panel and result panel to frame
         frame.add(mainPanel, BorderLayout.CENTER);
         frame.add(resultPanel, BorderLayout.SOUTH);
+        
+        // Load the classifier in the background; the window does not wait for it
+        startLoading();
+        installLiveMode();
+    }
+    
+    private void startLoading() {
+        resultLabel.setText("Loading classifier...");
+        progressBar.setIndeterminate(true);
+        loader = ClassifierLoader.start(EmailClassifier.DEFAULT_TRAINING_DATA, EmailClassifier.DEFAULT_MODEL,
+            (stage, fraction) -> SwingUtilities.invokeLater(() -> showLoadProgress(stage, fraction)));
+        loader.future().whenComplete((classifier, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                JOptionPane.showMessageDialog(frame, 
+                    "Failed to initialize classifier: " + error.getMessage(), 
+                    "Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+            }
+            // Waiting requests finish on their own and show their result
+            if (waitingRequests == 0) {
+                resultLabel.setText(PROMPT);
+                progressBar.setIndeterminate(false);
+                progressBar.setValue(0);
+            }
+            textChanged();
+        }));
+    }
+    
+    // Classify as you type: every edit of the sender, subject or body
+    // restarts a short timer, and only the last edit in a burst gets scored
+    private void installLiveMode() {
+        liveTimer = new Timer(LIVE_DELAY_MS, e -> classifyLive());
+        liveTimer.setRepeats(false);
+        DocumentListener listener = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                textChanged();
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                textChanged();
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // Attribute changes only
+            }
+        };
+        senderField.getDocument().addDocumentListener(listener);
+        subjectField.getDocument().addDocumentListener(listener);
+        bodyArea.getDocument().addDocumentListener(listener);
+        engineBox.addActionListener(e -> textChanged());
+        liveBox.addActionListener(e -> {
+            if (liveBox.isSelected()) {
+                textChanged();
+            } else {
+                liveTimer.stop();
+                cancelLiveWorker();
+            }
+        });
+    }
+    
+    private void textChanged() {
+        if (liveBox.isSelected()) {
+            liveTimer.restart();
+        }
+    }
+    
+    private void cancelLiveWorker() {
+        if (liveWorker != null) {
+            liveWorker.cancel(true);
+            liveWorker = null;
+        }
+    }
+    
+    private void classifyLive() {
+        String sender = senderField.getText().trim();
+        String subject = subjectField.getText().trim();
+        String body = bodyArea.getText().trim();
+        // A stale result must not overwrite a newer one
+        cancelLiveWorker();
+        if (!loader.isReady() || (subject.isEmpty() && body.isEmpty())) {
+            return;
+        }
+        ScoringEngine engine = (ScoringEngine) engineBox.getSelectedItem();
+        
+        SwingWorker<Double, Void> worker = new SwingWorker<Double, Void>() {
+            @Override
+            protected Double doInBackground() throws Exception {
+                EmailClassifier classifier = loader.await();
+                if (engine != ScoringEngine.RULES) {
+                    return classifier.classifyEmail(new Email(sender, subject, body), engine);
+                }
+                // A known sender decides before the content, as in classifyEmail()
+                ClassifierModel current = classifier.currentModel();
+                int verdict = classifier.senderVerdict(current, sender);
+                if (SenderReputation.isDecided(verdict)) {
+                    return SenderReputation.isSpam(verdict) ? 1.0 : 0.0;
+                }
+                // Only the edited part of the body is matched again
+                synchronized (liveScorer) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    return liveScorer.isSpam(current, subject, body) ? 1.0 : 0.0;
+                }
+            }
+            
+            @Override
+            protected void done() {
+                if (isCancelled() || liveWorker != this) {
+                    return;
+                }
+                liveWorker = null;
+                try {
+                    showResult(get(), engine);
+                } catch (Exception ex) {
+                    showError(ex);
+                }
+            }
+        };
+        liveWorker = worker;
+        worker.execute();
+    }
+    
+    private void showLoadProgress(String stage, double fraction) {
+        if (loader != null && loader.isReady()) {
+            return;
+        }
+        String percent = fraction >= 0 ? String.format(" %d%%", (int) (fraction * 100)) : "";
+        resultLabel.setText(waitingRequests == 0
+            ? "Loading classifier: " + stage + percent
+            : "Waiting for the classifier: " + stage + percent);
+        progressBar.setIndeterminate(fraction < 0);
+        if (fraction >= 0) {
+            progressBar.setValue((int) (fraction * 100));
+        }
     }
     
     private JPanel createHeaderPanel() {
@@ -189,11 +331,31 @@ public class GUI {
         
         JButton clearButton = new JButton("Clear");
         JButton classifyButton = new JButton("Classify Email");
+        JButton markSpamButton = new JButton("Mark as Spam");
+        JButton markHamButton = new JButton("Mark as Ham");
+        
+        // Re-scores while the subject or body is edited
+        liveBox = new JCheckBox("Classify as you type");
+        liveBox.setOpaque(false);
+        liveBox.setFont(new Font("Arial", Font.PLAIN, 14));
+        liveBox.setForeground(new Color(80, 80, 80));
+        
+        // Scoring engine selector
+        JLabel engineLabel = createStyledLabel("Engine:");
+        engineBox = new JComboBox<>(ScoringEngine.values());
+        engineBox.setFont(new Font("Arial", Font.PLAIN, 14));
         
         // Style buttons
         styleButton(clearButton, new Color(190, 190, 190), Color.WHITE);
         styleButton(classifyButton, accentColor, Color.WHITE);
-        
+        styleButton(markSpamButton, new Color(192, 57, 43), Color.WHITE);
+        styleButton(markHamButton, new Color(39, 174, 96), Color.WHITE);
+        
+        buttonPanel.add(liveBox);
+        buttonPanel.add(engineLabel);
+        buttonPanel.add(engineBox);
+        buttonPanel.add(markSpamButton);
+        buttonPanel.add(markHamButton);
         buttonPanel.add(clearButton);
         buttonPanel.add(classifyButton);
         
@@ -204,11 +366,13 @@ public class GUI {
                 senderField.setText("");
                 subjectField.setText("");
                 bodyArea.setText("");
-                resultLabel.setText("Enter email details and click 'Classify Email'");
                 resultLabel.setForeground(Color.DARK_GRAY);
                 resultPanel.setBackground(new Color(240, 240, 240));
-                progressBar.setIndeterminate(false);
-                progressBar.setValue(0);
+                if (loader.isReady()) {
+                    resultLabel.setText(PROMPT);
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue(0);
+                }
             }
         });
         
@@ -226,42 +390,37 @@ public class GUI {
                     return;
                 }
                 
-                // Show progress
-                progressBar.setIndeterminate(true);
-                resultLabel.setText("Classifying...");
+                // Show progress; while the classifier loads the bar keeps showing that
+                boolean waiting = !loader.isReady();
                 resultPanel.setBackground(new Color(240, 240, 240));
+                resultLabel.setForeground(Color.DARK_GRAY);
+                if (waiting) {
+                    waitingRequests++;
+                    resultLabel.setText("Waiting for the classifier to load...");
+                } else {
+                    progressBar.setIndeterminate(true);
+                    resultLabel.setText("Classifying...");
+                }
+                
+                ScoringEngine engine = (ScoringEngine) engineBox.getSelectedItem();
                 
                 // Use SwingWorker to perform classification in background
                 SwingWorker<Double, Void> worker = new SwingWorker<Double, Void>() {
                     @Override
                     protected Double doInBackground() throws Exception {
-                        // Simulate some processing time for better UX
-                        Thread.sleep(new Random().nextInt(500) + 500);
                         Email email = new Email(sender, subject, body);
-                        return classifier.classifyEmail(email);
+                        return loader.await().classifyEmail(email, engine);
                     }
                     
                     @Override
                     protected void done() {
+                        if (waiting) {
+                            waitingRequests--;
+                        }
                         try {
-                            double result = get();
-                            if (result == 1.0) {
-                                resultLabel.setText("SPAM DETECTED");
-                                resultLabel.setForeground(new Color(180, 0, 0));
-                                resultPanel.setBackground(new Color(255, 235, 235));
-                                progressBar.setIndeterminate(false);
-                                progressBar.setValue(100);
-                            } else {
-                                resultLabel.setText("NOT SPAM (HAM)");
-                                resultLabel.setForeground(new Color(0, 100, 0));
-                                resultPanel.setBackground(new Color(235, 255, 235));
-                                progressBar.setIndeterminate(false);
-                                progressBar.setValue(100);
-                            }
+                            showResult(get(), engine);
                         } catch (Exception ex) {
-                            resultLabel.setText("Error: " + ex.getMessage());
-                            resultLabel.setForeground(Color.RED);
-                            progressBar.setIndeterminate(false);
+                            showError(ex);
                         }
                     }
                 };
@@ -270,9 +429,89 @@ public class GUI {
             }
         });
         
+        // Feed user corrections back into the classifier
+        markSpamButton.addActionListener(e -> learnFromUser(true));
+        markHamButton.addActionListener(e -> learnFromUser(false));
+        
         return buttonPanel;
     }
     
+    private void showResult(double result, ScoringEngine engine) {
+        String probability = (engine == ScoringEngine.NAIVE_BAYES)
+            ? String.format(" (%.1f%% spam)", result * 100) : "";
+        if (result >= 0.5) {
+            resultLabel.setText("SPAM DETECTED" + probability);
+            resultLabel.setForeground(new Color(180, 0, 0));
+            resultPanel.setBackground(new Color(255, 235, 235));
+        } else {
+            resultLabel.setText("NOT SPAM (HAM)" + probability);
+            resultLabel.setForeground(new Color(0, 100, 0));
+            resultPanel.setBackground(new Color(235, 255, 235));
+        }
+        progressBar.setIndeterminate(false);
+        progressBar.setValue(100);
+    }
+    
+    private void showError(Exception ex) {
+        resultLabel.setText("Error: " + ex.getMessage());
+        resultLabel.setForeground(Color.RED);
+        progressBar.setIndeterminate(false);
+    }
+    
+    private void learnFromUser(boolean isSpam) {
+        String sender = senderField.getText().trim();
+        String subject = subjectField.getText().trim();
+        String body = bodyArea.getText().trim();
+        
+        if (subject.isEmpty() && body.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, 
+                "Enter an email to learn from", 
+                "Missing Information", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        
+        boolean waiting = !loader.isReady();
+        if (waiting) {
+            waitingRequests++;
+            resultLabel.setText("Waiting for the classifier to load...");
+            resultLabel.setForeground(Color.DARK_GRAY);
+        } else {
+            progressBar.setIndeterminate(true);
+        }
+        
+        // Learning and saving the model run off the event thread; other
+        // classifications keep using the previous model until it is swapped
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                EmailClassifier classifier = loader.await();
+                classifier.learn(new Email(sender, subject, body), isSpam);
+                classifier.saveModel(Paths.get(EmailClassifier.DEFAULT_MODEL));
+                return null;
+            }
+            
+            @Override
+            protected void done() {
+                if (waiting) {
+                    waitingRequests--;
+                }
+                progressBar.setIndeterminate(false);
+                try {
+                    get();
+                    resultLabel.setText("Learned as " + (isSpam ? "SPAM" : "HAM"));
+                    resultLabel.setForeground(Color.DARK_GRAY);
+                    resultPanel.setBackground(new Color(240, 240, 240));
+                    progressBar.setValue(100);
+                } catch (Exception ex) {
+                    resultLabel.setText("Error: " + ex.getMessage());
+                    resultLabel.setForeground(Color.RED);
+                }
+            }
+        };
+        
+        worker.execute();
+    }
+    
     private JPanel createResultPanel() {
         JPanel resultPanel = new JPanel(new BorderLayout(10, 10));
         resultPanel.setBorder(BorderFactory.createCompoundBorder(
@@ -281,7 +520,7 @@ public class GUI {
         ));
         resultPanel.setBackground(new Color(240, 240, 240));
         
-        resultLabel = new JLabel("Enter email details and click 'Classify Email'");
+        resultLabel = new JLabel(PROMPT);
         resultLabel.setHorizontalAlignment(JLabel.CENTER);
         resultLabel.setFont(new Font("Arial", Font.BOLD, 18));
         resultLabel.setForeground(Color.DARK_GRAY);
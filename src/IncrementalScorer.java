@@ -0,0 +1,162 @@
+import java.util.Arrays;
+
+// Keeps the rule score of a message that is being edited up to date. Body
+// keyword occurrences are remembered with their end positions, so after an
+// edit only the changed span, widened by the longest keyword on each side,
+// goes through the automaton again. The pattern flags and the short subject
+// are rescanned in full. score() always equals ClassifierModel.scoreEmail().
+// Not thread-safe: use one instance per editor.
+public final class IncrementalScorer {
+    // What the stored occurrences were found in: the keyword matcher, and
+    // the body as matched (lower-cased unless folded while matching)
+    private AhoCorasickMatcher matcher;
+    private String body = "";
+    private boolean folded;
+
+    // Occurrences sorted by end position: pattern patterns[i] (a terminal
+    // node) ends just before body position ends[i]
+    private int[] ends = new int[64];
+    private int[] patterns = new int[64];
+    private int occurrences;
+    private int[] scratchEnds = new int[64];
+    private int[] scratchPatterns = new int[64];
+
+    // Occurrences per pattern, and how many patterns have any
+    private int[] perPattern = new int[0];
+    private int distinct;
+
+    private int lastRescan;
+
+    public int score(ClassifierModel model, CharSequence subject, CharSequence body) {
+        int bodyFlags = SpamPatternScanner.scan(body);
+        boolean fold = SpamPatternScanner.canFoldAscii(bodyFlags);
+        int keywordMatches = updateBody(model.keywordMatcher(), fold ? body.toString() : body.toString().toLowerCase(), fold);
+
+        int subjectFlags = SpamPatternScanner.scan(subject);
+        int subjectPhraseMatches;
+        boolean allCapsSubject;
+        if (SpamPatternScanner.canFoldAscii(subjectFlags)) {
+            subjectPhraseMatches = model.subjectPhraseMatcher().countMatchesFoldingAscii(subject);
+            allCapsSubject = (subjectFlags & SpamPatternScanner.HAS_LETTER) == 0 && subject.length() > 10;
+        } else {
+            String lowerSubject = subject.toString().toLowerCase();
+            subjectPhraseMatches = model.subjectPhraseMatcher().countMatches(lowerSubject);
+            allCapsSubject = lowerSubject.toUpperCase().equals(lowerSubject) && lowerSubject.length() > 10;
+        }
+        return ClassifierModel.ruleScore(keywordMatches, SpamPatternScanner.hasDollarAmount(bodyFlags),
+            subjectPhraseMatches, SpamPatternScanner.hasMultipleExclamation(subjectFlags), allCapsSubject);
+    }
+
+    public boolean isSpam(ClassifierModel model, CharSequence subject, CharSequence body) {
+        return score(model, subject, body) >= EmailClassifier.SPAM_THRESHOLD;
+    }
+
+    // Body characters run through the automaton by the last score() call
+    public int lastRescanLength() {
+        return lastRescan;
+    }
+
+    // Forgets the previous body; the next score() scans it in full
+    public void reset() {
+        matcher = null;
+        body = "";
+        occurrences = 0;
+        distinct = 0;
+    }
+
+    // Brings the occurrences up to date with text and returns the number of
+    // distinct keywords in it
+    private int updateBody(AhoCorasickMatcher keywords, String text, boolean fold) {
+        if (keywords != matcher || fold != folded) {
+            reset();
+            matcher = keywords;
+            folded = fold;
+            perPattern = new int[keywords.nodeCount()];
+        }
+        String old = body;
+        int oldLength = old.length();
+        int newLength = text.length();
+        int prefix = 0;
+        int shorter = Math.min(oldLength, newLength);
+        while (prefix < shorter && old.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < shorter - prefix && old.charAt(oldLength - 1 - suffix) == text.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+
+        // Occurrences ending after the prefix and within longest of the
+        // suffix may overlap the change; the rest are outside it
+        int longest = keywords.longestPattern();
+        int from = lowerBound(prefix + 1);
+        int to = lowerBound(oldLength - suffix + longest);
+        for (int i = from; i < to; i++) {
+            if (--perPattern[patterns[i]] == 0) {
+                distinct--;
+            }
+        }
+
+        // Find the occurrences in the same window of the new text. Starting
+        // longest characters early puts the automaton in the right state.
+        int found = 0;
+        int rescanEnd = Math.min(newLength, newLength - suffix + longest - 1);
+        int start = Math.max(0, prefix + 1 - longest);
+        int node = AhoCorasickMatcher.ROOT;
+        for (int i = start; i < rescanEnd; i++) {
+            char c = text.charAt(i);
+            node = keywords.step(node, fold ? SpamPatternScanner.foldAscii(c) : c);
+            if (i + 1 > prefix) {
+                for (int out = keywords.firstOutput(node); out != AhoCorasickMatcher.NONE; out = keywords.nextOutput(out)) {
+                    if (found == scratchEnds.length) {
+                        scratchEnds = Arrays.copyOf(scratchEnds, found * 2);
+                        scratchPatterns = Arrays.copyOf(scratchPatterns, found * 2);
+                    }
+                    scratchEnds[found] = i + 1;
+                    scratchPatterns[found++] = out;
+                    if (perPattern[out]++ == 0) {
+                        distinct++;
+                    }
+                }
+            }
+        }
+        lastRescan = Math.max(0, rescanEnd - start);
+
+        // Splice them in and shift the occurrences in the unchanged suffix
+        int tail = occurrences - to;
+        int size = from + found + tail;
+        if (size > ends.length) {
+            int capacity = Math.max(size, ends.length * 2);
+            ends = Arrays.copyOf(ends, capacity);
+            patterns = Arrays.copyOf(patterns, capacity);
+        }
+        System.arraycopy(ends, to, ends, from + found, tail);
+        System.arraycopy(patterns, to, patterns, from + found, tail);
+        System.arraycopy(scratchEnds, 0, ends, from, found);
+        System.arraycopy(scratchPatterns, 0, patterns, from, found);
+        int shift = newLength - oldLength;
+        if (shift != 0) {
+            for (int i = from + found; i < size; i++) {
+                ends[i] += shift;
+            }
+        }
+        occurrences = size;
+        body = text;
+        return distinct + (keywords.matchesEmpty() ? 1 : 0);
+    }
+
+    // Index of the first occurrence ending at or after end
+    private int lowerBound(int end) {
+        int low = 0;
+        int high = occurrences;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] < end) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
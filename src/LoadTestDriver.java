@@ -0,0 +1,125 @@
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives POST /classify at increasing concurrency and reports throughput and
+// latency percentiles for each level. With "embedded" (the default) it starts
+// a ClassificationServer in this JVM on a free port.
+// Usage: java LoadTestDriver [url|embedded] [maxConcurrency] [secondsPerLevel]
+public class LoadTestDriver {
+    private static final String[] MESSAGES = {
+        "{\"sender\":\"spam@domain.com\",\"subject\":\"WIN A FREE PRIZE NOW!!\","
+            + "\"body\":\"Congratulations, you have won $1000 cash. Click here to claim your prize today.\"}",
+        "{\"sender\":\"boss@company.com\",\"subject\":\"Meeting Reminder\","
+            + "\"body\":\"Meeting tomorrow at 10 AM in the main conference room. Please bring the quarterly report.\"}",
+        "{\"sender\":\"security-alert@bank-verify.com\",\"subject\":\"Account Suspension Notice\","
+            + "\"body\":\"URGENT: Your account has been suspended. Verify your password immediately to restore access.\"}",
+        "{\"sender\":\"colleague@company.com\",\"subject\":\"Project Proposal Review\","
+            + "\"body\":\"Please review the attached project proposal and send me your comments by Friday.\"}"
+    };
+
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "embedded";
+        int maxConcurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long secondsPerLevel = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+        ClassificationServer embedded = null;
+        String url = target;
+        if (target.equals("embedded")) {
+            EmailClassifier classifier = EmailClassifier.load(EmailClassifier.DEFAULT_TRAINING_DATA,
+                EmailClassifier.DEFAULT_MODEL);
+            embedded = new ClassificationServer(classifier, new InetSocketAddress("localhost", 0),
+                Integer.getInteger("spamfilter.http.batchSize", 32),
+                Long.getLong("spamfilter.http.batchDelayMicros", 200));
+            embedded.start();
+            url = "http://localhost:" + embedded.port() + "/classify";
+            System.out.println("Started embedded server on " + url + " ("
+                + (embedded.usesVirtualThreads() ? "virtual" : "platform") + " request threads)");
+        }
+
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+        URI uri = URI.create(url);
+
+        // Warm up the server and the connection pool
+        run(client, uri, Math.min(4, maxConcurrency), 1000);
+
+        System.out.printf("%11s %12s %10s %10s %10s %8s%n", "concurrency", "requests/s", "p50 ms", "p99 ms", "max ms", "errors");
+        for (int concurrency = 1; concurrency <= maxConcurrency; concurrency *= 2) {
+            Level level = run(client, uri, concurrency, secondsPerLevel * 1000);
+            System.out.printf("%11d %12.0f %10.2f %10.2f %10.2f %8d%n", concurrency, level.requestsPerSecond,
+                level.latency.percentile(0.50) / 1e6, level.latency.percentile(0.99) / 1e6,
+                level.latency.max() / 1e6, level.errors);
+        }
+
+        if (embedded != null) {
+            System.out.printf("Average micro-batch size: %.2f%n", embedded.averageBatchSize());
+            embedded.stop(0);
+        }
+    }
+
+    private static final class Level {
+        final LatencyHistogram latency = new LatencyHistogram("request");
+        double requestsPerSecond;
+        long errors;
+    }
+
+    private static Level run(HttpClient client, URI uri, int concurrency, long durationMillis) throws Exception {
+        Level level = new Level();
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder completed = new LongAdder();
+        LongAdder errors = new LongAdder();
+        CyclicBarrier barrier = new CyclicBarrier(concurrency + 1);
+        Thread[] clients = new Thread[concurrency];
+
+        for (int t = 0; t < concurrency; t++) {
+            final int offset = t;
+            clients[t] = new Thread(() -> {
+                try {
+                    barrier.await();
+                } catch (Exception e) {
+                    return;
+                }
+                for (long i = offset; running.get(); i++) {
+                    HttpRequest request = HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(MESSAGES[(int) (i % MESSAGES.length)]))
+                        .build();
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        level.latency.record(System.nanoTime() - start);
+                        if (response.statusCode() == 200) {
+                            completed.increment();
+                        } else {
+                            errors.increment();
+                        }
+                    } catch (Exception e) {
+                        errors.increment();
+                    }
+                }
+            }, "load-" + t);
+            clients[t].start();
+        }
+
+        barrier.await();
+        long start = System.nanoTime();
+        Thread.sleep(durationMillis);
+        running.set(false);
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        level.requestsPerSecond = completed.sum() * 1e9 / elapsed;
+        level.errors = errors.sum();
+        return level;
+    }
+}
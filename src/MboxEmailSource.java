@@ -0,0 +1,70 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+
+public class MboxEmailSource implements EmailSource {
+    private final BufferedReader reader;
+    private String pendingLine;
+
+    public MboxEmailSource(BufferedReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public Email next() throws IOException {
+        // Advance to the next "From " separator line
+        String line = pendingLine != null ? pendingLine : reader.readLine();
+        pendingLine = null;
+        while (line != null && !line.startsWith("From ")) {
+            line = reader.readLine();
+        }
+        if (line == null) {
+            return null;
+        }
+
+        // Headers run until the first blank line
+        String sender = "";
+        String subject = "";
+        String lastHeader = null;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            if ((line.startsWith(" ") || line.startsWith("\t")) && lastHeader != null) {
+                // Folded header continuation
+                if (lastHeader.equals("subject")) {
+                    subject = subject + " " + line.trim();
+                }
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                lastHeader = null;
+                continue;
+            }
+            lastHeader = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+            if (lastHeader.equals("from")) {
+                sender = value;
+            } else if (lastHeader.equals("subject")) {
+                subject = value;
+            }
+        }
+
+        // Body runs until the next separator line
+        StringBuilder body = new StringBuilder();
+        if (line != null) {
+            while ((line = reader.readLine()) != null && !line.startsWith("From ")) {
+                // Undo mboxrd ">From " quoting
+                if (line.startsWith(">") && line.replaceFirst("^>+", "").startsWith("From ")) {
+                    line = line.substring(1);
+                }
+                body.append(line).append('\n');
+            }
+            pendingLine = line;
+        }
+
+        return new Email(sender, subject, body.toString().trim());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,63 @@
+// The tokenized subject and body of one message, handed to every scorer
+// that looks at it so the message is only tokenized once. of() lends out a
+// per-thread instance that must be given back with release() when scoring
+// is done; training code that keeps its own instance calls extract().
+public final class MessageFeatures {
+    private static final ThreadLocal<MessageFeatures> CACHED = ThreadLocal.withInitial(MessageFeatures::new);
+
+    private final TokenizedText subject = new TokenizedText();
+    private final TokenizedText body = new TokenizedText();
+    private boolean inUse;
+
+    public static MessageFeatures of(Email email, boolean tokens) {
+        return of(email.getSubject(), email.getBody(), tokens);
+    }
+
+    public static MessageFeatures of(CharSequence subject, CharSequence body, boolean tokens) {
+        MessageFeatures features = CACHED.get();
+        if (features.inUse) {
+            // A scorer classifying another message from inside score()
+            features = new MessageFeatures();
+        }
+        features.inUse = true;
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+        if (!metrics.isEnabled()) {
+            return features.extract(subject, body, tokens);
+        }
+        long start = System.nanoTime();
+        features.extract(subject, body, tokens);
+        metrics.recordTokenize(System.nanoTime() - start);
+        return features;
+    }
+
+    // Without tokens only the pattern flags are collected, which is all the
+    // rule-based scorer needs
+    public MessageFeatures extract(CharSequence subject, CharSequence body, boolean tokens) {
+        if (tokens) {
+            this.subject.tokenize(subject);
+            this.body.tokenize(body);
+        } else {
+            this.subject.scan(subject);
+            this.body.scan(body);
+        }
+        return this;
+    }
+
+    public TokenizedText subject() {
+        return subject;
+    }
+
+    public TokenizedText body() {
+        return body;
+    }
+
+    public boolean hasTokens() {
+        return subject.isTokenized() && body.isTokenized();
+    }
+
+    public void release() {
+        subject.release();
+        body.release();
+        inUse = false;
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Groups small requests into batches handled by a few dispatcher threads.
+// A dispatcher takes what is queued, up to maxBatch items. If more requests
+// were already waiting it lingers up to maxDelay for the batch to fill;
+// when the queue was empty it handles the lone request at once, so idle
+// latency is not increased.
+public final class MicroBatcher<T, R> implements Closeable {
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<Pending<T, R>> queue = new LinkedBlockingQueue<>();
+    private final Function<List<T>, List<R>> handler;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final Thread[] dispatchers;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder items = new LongAdder();
+
+    private static final class Pending<T, R> {
+        final T item;
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        final long enqueued = System.nanoTime();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+
+    // handler must return one result per item, in order
+    public MicroBatcher(String name, int threads, int maxBatch, long maxDelayMicros,
+                        Function<List<T>, List<R>> handler) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be at least 1");
+        }
+        this.handler = handler;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        dispatchers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            dispatchers[i] = new Thread(this::dispatch, name + "-" + i);
+            dispatchers[i].setDaemon(true);
+            dispatchers[i].start();
+        }
+    }
+
+    public CompletableFuture<R> submit(T item) {
+        Pending<T, R> pending = new Pending<>(item);
+        if (!running) {
+            pending.result.completeExceptionally(new IllegalStateException("Batcher is closed"));
+            return pending.result;
+        }
+        queue.add(pending);
+        return pending.result;
+    }
+
+    public double averageBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0.0 : (double) items.sum() / count;
+    }
+
+    // Stops accepting work; requests already queued are still handled
+    @Override
+    public void close() {
+        running = false;
+        for (Thread dispatcher : dispatchers) {
+            try {
+                dispatcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // Anything that raced with close() after the dispatchers stopped
+        for (Pending<T, R> pending; (pending = queue.poll()) != null; ) {
+            pending.result.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+    }
+
+    private void dispatch() {
+        List<Pending<T, R>> batch = new ArrayList<>(maxBatch);
+        List<T> batchItems = new ArrayList<>(maxBatch);
+        try {
+            while (running || !queue.isEmpty()) {
+                Pending<T, R> first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                // Only wait for company when there is load
+                if (batch.size() > 1) {
+                    long deadline = first.enqueued + maxDelayNanos;
+                    while (batch.size() < maxBatch) {
+                        long wait = deadline - System.nanoTime();
+                        Pending<T, R> next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, maxBatch - batch.size());
+                    }
+                }
+                handle(batch, batchItems);
+                batch.clear();
+                batchItems.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(List<Pending<T, R>> batch, List<T> batchItems) {
+        for (Pending<T, R> pending : batch) {
+            batchItems.add(pending.item);
+        }
+        batches.increment();
+        items.add(batch.size());
+        try {
+            List<R> results = handler.apply(batchItems);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (RuntimeException | Error e) {
+            for (Pending<T, R> pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+}
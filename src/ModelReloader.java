@@ -0,0 +1,149 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+// Watches the training CSV and the compiled model file and reloads the
+// classifier when either one changes, through EmailClassifier.reload().
+// Events are gathered until the directories have been quiet for
+// quietMillis, so a file written in several steps is loaded once, after the
+// last write. Reloading runs on the watcher's own thread while the
+// classifier keeps serving; if it fails, the current model stays in use.
+public final class ModelReloader implements Closeable {
+    public static final long DEFAULT_QUIET_MILLIS = 500;
+
+    private final EmailClassifier classifier;
+    private final String trainingDataPath;
+    private final String modelPath;
+    private final Path training;
+    private final Path model;
+    private final long quietMillis;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    // Modification times as of the last load, or null for a missing file
+    private FileTime trainingTime;
+    private FileTime modelTime;
+
+    public ModelReloader(EmailClassifier classifier, String trainingDataPath, String modelPath,
+                         long quietMillis) throws IOException {
+        this.classifier = classifier;
+        this.trainingDataPath = trainingDataPath;
+        this.modelPath = modelPath;
+        this.training = Paths.get(trainingDataPath).toAbsolutePath().normalize();
+        this.model = Paths.get(modelPath).toAbsolutePath().normalize();
+        this.quietMillis = quietMillis;
+        trainingTime = modifiedTime(training);
+        modelTime = modifiedTime(model);
+
+        watcher = FileSystems.getDefault().newWatchService();
+        try {
+            register(training.getParent());
+            if (!model.getParent().equals(training.getParent())) {
+                register(model.getParent());
+            }
+        } catch (IOException e) {
+            watcher.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "model-reloader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A reloader for classifier when -Dspamfilter.reload=true, otherwise null.
+    // -Dspamfilter.reload.quietMillis sets how long writes must pause.
+    public static ModelReloader fromSystemProperties(EmailClassifier classifier, String trainingDataPath,
+                                                     String modelPath) throws IOException {
+        if (!Boolean.getBoolean("spamfilter.reload")) {
+            return null;
+        }
+        long quietMillis = Long.getLong("spamfilter.reload.quietMillis", DEFAULT_QUIET_MILLIS);
+        System.out.println("Watching " + trainingDataPath + " and " + modelPath + " for changes");
+        return new ModelReloader(classifier, trainingDataPath, modelPath, quietMillis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watcher.close();
+    }
+
+    private void register(Path directory) throws IOException {
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                boolean changed = drain(watcher.take());
+                WatchKey key;
+                while ((key = watcher.poll(quietMillis, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(key);
+                }
+                if (changed) {
+                    reloadIfModified();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    // Whether any event in key concerns one of our files
+    private boolean drain(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else {
+                Path file = directory.resolve((Path) event.context());
+                changed |= file.equals(training) || file.equals(model);
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reloadIfModified() {
+        FileTime currentTraining = modifiedTime(training);
+        FileTime currentModel = modifiedTime(model);
+        // The classifier's own saveModel(), such as after GUI feedback, wrote
+        // what it already serves
+        if (Objects.equals(currentTraining, trainingTime) && (Objects.equals(currentModel, modelTime)
+                || classifier.savedModel(model, currentModel))) {
+            modelTime = currentModel;
+            return;
+        }
+        try {
+            long version = classifier.reload(trainingDataPath, modelPath);
+            System.out.printf("Reloaded model version %d in %.1f ms%n", version,
+                ClassifierMetrics.get().getLastReloadMillis());
+        } catch (Exception e) {
+            System.out.println("Warning: Could not reload model, keeping the current one: " + e.getMessage());
+        }
+        // Retraining writes a new model file, which must not trigger another reload
+        trainingTime = currentTraining;
+        modelTime = modifiedTime(model);
+    }
+
+    private static FileTime modifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
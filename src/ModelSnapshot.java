@@ -0,0 +1,236 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Binary model file layout (big-endian):
+//   magic "SPAMMODL", int version, long payload length, long CRC32 of payload
+//   payload: keyword strings, subject phrase strings, keyword automaton,
+//            subject phrase automaton, Naive Bayes statistics, sender reputation,
+//            score calibration
+public final class ModelSnapshot {
+    // Version 2: Naive Bayes features are TokenizedText unigrams and bigrams
+    // Version 3: sender reputation
+    // Version 4: score calibration
+    // Version 5: Naive Bayes stop-word setting
+    public static final int VERSION = 5;
+
+    private static final byte[] MAGIC = "SPAMMODL".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + Integer.BYTES + 2 * Long.BYTES;
+
+    private final ByteBuffer keywords;
+    private final ByteBuffer subjectPhrases;
+    private final AhoCorasickMatcher keywordMatcher;
+    private final AhoCorasickMatcher subjectPhraseMatcher;
+    private final NaiveBayesModel bayesModel;
+    private final SenderReputation reputation;
+    private final ScoreCalibration calibration;
+
+    private ModelSnapshot(ByteBuffer keywords, ByteBuffer subjectPhrases,
+                          AhoCorasickMatcher keywordMatcher, AhoCorasickMatcher subjectPhraseMatcher,
+                          NaiveBayesModel bayesModel, SenderReputation reputation, ScoreCalibration calibration) {
+        this.keywords = keywords;
+        this.subjectPhrases = subjectPhrases;
+        this.keywordMatcher = keywordMatcher;
+        this.subjectPhraseMatcher = subjectPhraseMatcher;
+        this.bayesModel = bayesModel;
+        this.reputation = reputation;
+        this.calibration = calibration;
+    }
+
+    public AhoCorasickMatcher keywordMatcher() {
+        return keywordMatcher;
+    }
+
+    public AhoCorasickMatcher subjectPhraseMatcher() {
+        return subjectPhraseMatcher;
+    }
+
+    public NaiveBayesModel bayesModel() {
+        return bayesModel;
+    }
+
+    public SenderReputation reputation() {
+        return reputation;
+    }
+
+    public ScoreCalibration calibration() {
+        return calibration;
+    }
+
+    // Keyword strings are only decoded on request; scoring uses the automata
+    public void readKeywords(TokenDictionary target) {
+        readStrings(keywords.duplicate(), target);
+    }
+
+    public void readSubjectPhrases(TokenDictionary target) {
+        readStrings(subjectPhrases.duplicate(), target);
+    }
+
+    // Writes model together with the vocabularies its matchers were built from
+    public static void write(Path path, TokenDictionary keywords, TokenDictionary subjectPhrases,
+                             ClassifierModel model) throws IOException {
+        // Write to a temporary file first so readers never see a partial model.
+        // The name is unique, so concurrent writers never share one; the last
+        // move wins.
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        boolean moved = false;
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.write(new byte[HEADER_SIZE]);
+                writeStrings(out, keywords);
+                writeStrings(out, subjectPhrases);
+                model.keywordMatcher().writeTo(out);
+                model.subjectPhraseMatcher().writeTo(out);
+                model.bayesModel().writeTo(out);
+                model.reputation().writeTo(out);
+                model.calibration().writeTo(out);
+            }
+
+            // Fill in the header now that the payload length and checksum are known
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long payloadLength = channel.size() - HEADER_SIZE;
+                MappedByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, payloadLength);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).putInt(VERSION).putLong(payloadLength).putLong(crc.getValue());
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    public static ModelSnapshot read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Model file is truncated: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a spam model file: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported model version " + version + " (expected " + VERSION + ")");
+            }
+            long payloadLength = buffer.getLong();
+            long checksum = buffer.getLong();
+            if (payloadLength != channel.size() - HEADER_SIZE) {
+                throw new IOException("Model file length does not match header: " + path);
+            }
+
+            ByteBuffer payload = buffer.slice();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Model file checksum mismatch: " + path);
+            }
+
+            ByteBuffer keywords = skipStrings(payload);
+            ByteBuffer subjectPhrases = skipStrings(payload);
+            AhoCorasickMatcher keywordMatcher = AhoCorasickMatcher.readFrom(payload);
+            AhoCorasickMatcher subjectPhraseMatcher = AhoCorasickMatcher.readFrom(payload);
+            NaiveBayesModel bayesModel = NaiveBayesModel.readFrom(payload);
+            SenderReputation reputation = SenderReputation.readFrom(payload);
+            ScoreCalibration calibration = ScoreCalibration.readFrom(payload);
+            return new ModelSnapshot(keywords, subjectPhrases, keywordMatcher, subjectPhraseMatcher,
+                bayesModel, reputation, calibration);
+        }
+    }
+
+    static void writeStrings(DataOutputStream out, TokenDictionary strings) throws IOException {
+        // Byte length of the section first, so readers can skip it without decoding
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        DataOutputStream sectionOut = new DataOutputStream(section);
+        sectionOut.writeInt(strings.size());
+        for (int id = 0; id < strings.size(); id++) {
+            byte[] bytes = strings.get(id).getBytes(StandardCharsets.UTF_8);
+            sectionOut.writeInt(bytes.length);
+            sectionOut.write(bytes);
+        }
+        out.writeLong(section.size());
+        section.writeTo(out);
+    }
+
+    static ByteBuffer skipStrings(ByteBuffer buffer) {
+        int length = (int) buffer.getLong();
+        ByteBuffer section = buffer.slice();
+        section.limit(length);
+        buffer.position(buffer.position() + length);
+        return section;
+    }
+
+    static void readStrings(ByteBuffer section, TokenDictionary target) {
+        int count = section.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[section.getInt()];
+            section.get(bytes);
+            target.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    static void writeBooleans(DataOutputStream out, boolean[] values, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeByte(values[i] ? 1 : 0);
+        }
+    }
+
+    static long[] readLongs(ByteBuffer buffer) {
+        long[] values = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Long.BYTES);
+        return values;
+    }
+
+    static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    static boolean[] readBooleans(ByteBuffer buffer) {
+        boolean[] values = new boolean[buffer.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.get() != 0;
+        }
+        return values;
+    }
+}
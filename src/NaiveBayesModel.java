@@ -0,0 +1,409 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Multinomial Naive Bayes over hashed unigram and bigram features taken
+// from TokenizedText. Subject and body features are mixed with different
+// seeds so the same word counts as two features. Partial models also keep
+// their features in first-seen order so they can be merged.
+//
+// Tokens are normalized before they count: with stop words on, the
+// unigrams TokenizedText marks as stop words are skipped, and bigrams are
+// formed from the words left once stop words are taken out, as
+// DataPreprocessor.cleanText() would leave them. The setting is part of
+// the model, so a model always scores with the tokens it was trained on.
+public class NaiveBayesModel {
+    public static final int DEFAULT_MAX_TOKENS = 1 << 21;
+
+    // -Dspamfilter.bayes.stopWords=false trains new models on every token
+    public static final boolean DEFAULT_STOP_WORDS =
+        Boolean.parseBoolean(System.getProperty("spamfilter.bayes.stopWords", "true"));
+
+    private static final long SUBJECT_SEED = 0xCBF29CE484222325L;
+    private static final long BODY_SEED = 0x84222325CBF29CE4L;
+    private static final long BIGRAM_SEED = 0x9E3779B97F4A7C15L;
+    private static final long MIX = 0xBF58476D1CE4E5B9L;
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 40;
+    private static final double SMOOTHING = 1.0;
+
+    private final TokenCountTable counts;
+    private final boolean stopWords;
+    private long spamTokens;
+    private long hamTokens;
+    private int spamMessages;
+    private int hamMessages;
+    private boolean frozen;
+
+    // Features in the order they entered the table and the token limit;
+    // only kept by partials. dropped is set once a new feature found the
+    // table full. A partial restricted to a vocabulary only counts the
+    // features in allowed.
+    private long[] insertionOrder;
+    private int inserted;
+    private int partialLimit;
+    private boolean dropped;
+    private TokenCountTable allowed;
+
+    public NaiveBayesModel() {
+        this(DEFAULT_MAX_TOKENS);
+    }
+
+    public NaiveBayesModel(int maxTokens) {
+        this(maxTokens, DEFAULT_STOP_WORDS);
+    }
+
+    public NaiveBayesModel(int maxTokens, boolean stopWords) {
+        counts = new TokenCountTable(1024, maxTokens);
+        this.stopWords = stopWords;
+    }
+
+    private NaiveBayesModel(ByteBuffer buffer) {
+        stopWords = buffer.get() != 0;
+        spamMessages = buffer.getInt();
+        hamMessages = buffer.getInt();
+        spamTokens = buffer.getLong();
+        hamTokens = buffer.getLong();
+        counts = TokenCountTable.readFrom(buffer);
+    }
+
+    private NaiveBayesModel(NaiveBayesModel source) {
+        counts = source.counts.copy();
+        stopWords = source.stopWords;
+        spamTokens = source.spamTokens;
+        hamTokens = source.hamTokens;
+        spamMessages = source.spamMessages;
+        hamMessages = source.hamMessages;
+    }
+
+    // A model that records feature order, so that merge() and complete()
+    // can reproduce sequential training. Like sequential training, a partial
+    // stops taking new features at maxTokens, so its memory is bounded.
+    // A merge is then exact unless a partial that does not start at the
+    // beginning of the input dropped features: those may be features an
+    // earlier partial kept, and their counts in the dropping partial are
+    // lost. droppedFeatures() tells when to recount with restrictedTo().
+    public static NaiveBayesModel partial(int maxTokens) {
+        return partial(maxTokens, DEFAULT_STOP_WORDS);
+    }
+
+    public static NaiveBayesModel partial(int maxTokens, boolean stopWords) {
+        NaiveBayesModel model = new NaiveBayesModel(maxTokens, stopWords);
+        model.insertionOrder = new long[1024];
+        model.partialLimit = maxTokens;
+        return model;
+    }
+
+    // An empty partial that only counts the features of vocabulary, a
+    // partial trained on the whole input. Partials restricted to the same
+    // vocabulary never drop a feature it holds, so their merge has exact
+    // counts. vocabulary must not change while they are trained.
+    public static NaiveBayesModel restrictedTo(NaiveBayesModel vocabulary) {
+        if (!vocabulary.isPartial()) {
+            throw new IllegalArgumentException("Only a partial model can restrict another");
+        }
+        NaiveBayesModel model = partial(vocabulary.partialLimit, vocabulary.stopWords);
+        model.allowed = vocabulary.counts;
+        return model;
+    }
+
+    // Whether a new feature was turned away because the table was full
+    public boolean droppedFeatures() {
+        return dropped;
+    }
+
+    // Whether stop words are left out of the features
+    public boolean skipsStopWords() {
+        return stopWords;
+    }
+
+    public boolean isPartial() {
+        return insertionOrder != null;
+    }
+
+    public NaiveBayesModel copy() {
+        return new NaiveBayesModel(this);
+    }
+
+    public static NaiveBayesModel readFrom(ByteBuffer buffer) {
+        return new NaiveBayesModel(buffer);
+    }
+
+    // Layout: byte stop words, int spamMessages, int hamMessages,
+    // long spamTokens, long hamTokens, then the count table
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(stopWords ? 1 : 0);
+        out.writeInt(spamMessages);
+        out.writeInt(hamMessages);
+        out.writeLong(spamTokens);
+        out.writeLong(hamTokens);
+        counts.writeTo(out);
+    }
+
+    // Makes the model read-only; it may then be shared by scoring threads
+    public NaiveBayesModel freeze() {
+        frozen = true;
+        return this;
+    }
+
+    // Adds the counts of a partial trained on the messages that follow this
+    // model's. Features are appended in other's first-seen order, so unless
+    // other dropped features, the result is the partial sequential training
+    // would have built. Without dropped features merging is associative:
+    // (a + b) + c equals a + (b + c).
+    public NaiveBayesModel merge(NaiveBayesModel other) {
+        if (frozen) {
+            throw new IllegalStateException("Model is frozen; merge into a copy instead");
+        }
+        if (!isPartial() || !other.isPartial()) {
+            throw new IllegalArgumentException("Only partial models can be merged");
+        }
+        if (partialLimit != other.partialLimit) {
+            throw new IllegalArgumentException("Token limits differ: " + partialLimit + " and " + other.partialLimit);
+        }
+        if (stopWords != other.stopWords) {
+            throw new IllegalArgumentException("One partial skips stop words and the other does not");
+        }
+        for (int i = 0; i < other.inserted; i++) {
+            long feature = other.insertionOrder[i];
+            int slot = other.counts.find(feature);
+            add(feature, other.counts.spamCountAt(slot), other.counts.hamCountAt(slot));
+        }
+        spamTokens += other.spamTokens;
+        hamTokens += other.hamTokens;
+        spamMessages += other.spamMessages;
+        hamMessages += other.hamMessages;
+        dropped |= other.dropped;
+        return this;
+    }
+
+    // The model sequential training would have produced: the first maxTokens
+    // features in first-seen order keep all their counts, later ones are
+    // dropped
+    public NaiveBayesModel complete() {
+        if (!isPartial()) {
+            throw new IllegalStateException("Not a partial model");
+        }
+        NaiveBayesModel model = new NaiveBayesModel(partialLimit, stopWords);
+        for (int i = 0; i < inserted; i++) {
+            long feature = insertionOrder[i];
+            int slot = counts.find(feature);
+            int spam = counts.spamCountAt(slot);
+            int ham = counts.hamCountAt(slot);
+            if (!model.counts.add(feature, spam, ham)) {
+                break;
+            }
+            model.spamTokens += spam;
+            model.hamTokens += ham;
+        }
+        model.spamMessages = spamMessages;
+        model.hamMessages = hamMessages;
+        return model;
+    }
+
+    // Partial layout: int maxTokens, byte stop words, int spamMessages,
+    // int hamMessages, int features, then (long feature, int spam, int ham)
+    // in first-seen order
+    public void writePartialTo(DataOutputStream out) throws IOException {
+        if (!isPartial()) {
+            throw new IllegalStateException("Not a partial model");
+        }
+        out.writeInt(partialLimit);
+        out.writeByte(stopWords ? 1 : 0);
+        out.writeInt(spamMessages);
+        out.writeInt(hamMessages);
+        out.writeInt(inserted);
+        for (int i = 0; i < inserted; i++) {
+            int slot = counts.find(insertionOrder[i]);
+            out.writeLong(insertionOrder[i]);
+            out.writeInt(counts.spamCountAt(slot));
+            out.writeInt(counts.hamCountAt(slot));
+        }
+    }
+
+    public static NaiveBayesModel readPartialFrom(ByteBuffer buffer) {
+        int maxTokens = buffer.getInt();
+        NaiveBayesModel model = partial(maxTokens, buffer.get() != 0);
+        model.spamMessages = buffer.getInt();
+        model.hamMessages = buffer.getInt();
+        int features = buffer.getInt();
+        for (int i = 0; i < features; i++) {
+            long feature = buffer.getLong();
+            int spam = buffer.getInt();
+            int ham = buffer.getInt();
+            model.add(feature, spam, ham);
+            model.spamTokens += spam;
+            model.hamTokens += ham;
+        }
+        return model;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public void train(CharSequence subject, CharSequence body, boolean spam) {
+        MessageFeatures features = MessageFeatures.of(subject, body, true);
+        try {
+            train(features, spam);
+        } finally {
+            features.release();
+        }
+    }
+
+    public void train(MessageFeatures features, boolean spam) {
+        if (frozen) {
+            throw new IllegalStateException("Model is frozen; train a copy instead");
+        }
+        int spamDelta = spam ? 1 : 0;
+        int hamDelta = spam ? 0 : 1;
+        long added = trainText(features.subject(), SUBJECT_SEED, spamDelta, hamDelta)
+            + trainText(features.body(), BODY_SEED, spamDelta, hamDelta);
+        if (spam) {
+            spamMessages++;
+            spamTokens += added;
+        } else {
+            hamMessages++;
+            hamTokens += added;
+        }
+    }
+
+    public double spamProbability(CharSequence subject, CharSequence body) {
+        MessageFeatures features = MessageFeatures.of(subject, body, true);
+        try {
+            return spamProbability(features);
+        } finally {
+            features.release();
+        }
+    }
+
+    public double spamProbability(MessageFeatures features) {
+        if (!features.hasTokens()) {
+            throw new IllegalArgumentException("Naive Bayes needs tokenized features");
+        }
+        if (spamMessages == 0 || hamMessages == 0) {
+            return spamMessages > 0 ? 1.0 : 0.0;
+        }
+        double vocabulary = SMOOTHING * counts.size();
+        double spamDenominator = Math.log(spamTokens + vocabulary);
+        double hamDenominator = Math.log(hamTokens + vocabulary);
+
+        double logOdds = Math.log(spamMessages) - Math.log(hamMessages)
+            + logLikelihoodRatio(features.subject(), SUBJECT_SEED, spamDenominator, hamDenominator)
+            + logLikelihoodRatio(features.body(), BODY_SEED, spamDenominator, hamDenominator);
+        return 1.0 / (1.0 + Math.exp(-logOdds));
+    }
+
+    public int vocabularySize() {
+        return counts.size();
+    }
+
+    public int spamMessages() {
+        return spamMessages;
+    }
+
+    public int hamMessages() {
+        return hamMessages;
+    }
+
+    public long estimatedBytes() {
+        return counts.estimatedBytes();
+    }
+
+    private long trainText(TokenizedText text, long seed, int spamDelta, int hamDelta) {
+        long added = 0;
+        for (int i = 0; i < text.unigramCount(); i++) {
+            if (isUnigram(text, i) && add(feature(text.unigramHash(i), seed), spamDelta, hamDelta)) {
+                added++;
+            }
+        }
+        // Bigrams pair neighbouring words with letters, once stop words are
+        // taken out if the model skips them; a word without letters breaks
+        // the pair
+        int previous = -1;
+        for (int i = 0; i < text.wordCount(); i++) {
+            if (stopWords && text.wordIsStopWord(i)) {
+                continue;
+            }
+            if (text.wordLength(i) == 0) {
+                previous = -1;
+                continue;
+            }
+            if (previous >= 0 && add(feature(text.pairHash(previous, i), seed ^ BIGRAM_SEED), spamDelta, hamDelta)) {
+                added++;
+            }
+            previous = i;
+        }
+        return added;
+    }
+
+    private boolean add(long feature, int spamDelta, int hamDelta) {
+        if (insertionOrder == null) {
+            return counts.add(feature, spamDelta, hamDelta);
+        }
+        if (allowed != null && allowed.find(feature) < 0) {
+            return false;
+        }
+        int size = counts.size();
+        if (!counts.add(feature, spamDelta, hamDelta)) {
+            dropped = true;
+            return false;
+        }
+        if (counts.size() != size) {
+            if (inserted == insertionOrder.length) {
+                insertionOrder = Arrays.copyOf(insertionOrder, inserted * 2);
+            }
+            insertionOrder[inserted++] = feature;
+        }
+        return true;
+    }
+
+    private double logLikelihoodRatio(TokenizedText text, long seed,
+                                      double spamDenominator, double hamDenominator) {
+        double ratio = 0.0;
+        for (int i = 0; i < text.unigramCount(); i++) {
+            if (isUnigram(text, i)) {
+                ratio += evidence(feature(text.unigramHash(i), seed), spamDenominator, hamDenominator);
+            }
+        }
+        int previous = -1;
+        for (int i = 0; i < text.wordCount(); i++) {
+            if (stopWords && text.wordIsStopWord(i)) {
+                continue;
+            }
+            if (text.wordLength(i) == 0) {
+                previous = -1;
+                continue;
+            }
+            if (previous >= 0) {
+                ratio += evidence(feature(text.pairHash(previous, i), seed ^ BIGRAM_SEED), spamDenominator, hamDenominator);
+            }
+            previous = i;
+        }
+        return ratio;
+    }
+
+    private double evidence(long feature, double spamDenominator, double hamDenominator) {
+        // Features never seen in training carry no evidence
+        int slot = counts.find(feature);
+        if (slot < 0) {
+            return 0.0;
+        }
+        return Math.log(counts.spamCountAt(slot) + SMOOTHING) - spamDenominator
+            - Math.log(counts.hamCountAt(slot) + SMOOTHING) + hamDenominator;
+    }
+
+    // Unigrams of MIN_TOKEN_LENGTH to MAX_TOKEN_LENGTH characters count,
+    // except stop words if the model skips them
+    private boolean isUnigram(TokenizedText text, int index) {
+        int length = text.unigramLength(index);
+        return length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH
+            && !(stopWords && text.unigramIsStopWord(index));
+    }
+
+    private static long feature(long hash, long seed) {
+        long h = (hash ^ seed) * MIX;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Turns a rule score into a spam probability with a logistic curve fitted
+// to labelled messages (Platt scaling):
+//   p(score) = 1 / (1 + exp(slope * score + intercept))
+// Fitting takes a histogram of scores per class and follows Lin, Lin and
+// Weng's Newton method with Platt's smoothed targets, so a score that only
+// ever appeared on spam still maps below 1.
+public final class ScoreCalibration {
+    // Used when no labelled messages were scored: 50% between the threshold
+    // and the point below it, and each point shifts the odds by e
+    public static final ScoreCalibration DEFAULT = new ScoreCalibration(-1.0, EmailClassifier.SPAM_THRESHOLD - 0.5);
+
+    // Histograms passed to fit() have this many buckets; higher scores go
+    // in the last one
+    public static final int SCORE_BUCKETS = 256;
+
+    private static final int MAX_ITERATIONS = 100;
+    private static final double MIN_STEP = 1e-10;
+    private static final double SIGMA = 1e-12;
+    private static final double EPSILON = 1e-5;
+
+    private final double slope;
+    private final double intercept;
+
+    public ScoreCalibration(double slope, double intercept) {
+        this.slope = slope;
+        this.intercept = intercept;
+    }
+
+    public static int bucket(int score) {
+        return Math.min(score, SCORE_BUCKETS - 1);
+    }
+
+    public double slope() {
+        return slope;
+    }
+
+    public double intercept() {
+        return intercept;
+    }
+
+    public double probability(int score) {
+        double f = slope * score + intercept;
+        // Written so exp() never overflows
+        return f >= 0 ? Math.exp(-f) / (1.0 + Math.exp(-f)) : 1.0 / (1.0 + Math.exp(f));
+    }
+
+    // Fits the curve to spam[s] spam and ham[s] ham messages with score s.
+    // Returns DEFAULT when either class is missing.
+    public static ScoreCalibration fit(long[] spam, long[] ham) {
+        return fit(spam, ham, 0, true);
+    }
+
+    // As fit(), but only the slope is fitted: the curve is held at 50% at
+    // center, as DEFAULT is, so the probability agrees with a threshold
+    // between the scores either side of center however skewed the scores
+    // it is fitted to are
+    public static ScoreCalibration fitThrough(long[] spam, long[] ham, double center) {
+        return fit(spam, ham, center, false);
+    }
+
+    // Fits f = a * (s - center) + b; b stays 0 unless fitIntercept
+    private static ScoreCalibration fit(long[] spam, long[] ham, double center, boolean fitIntercept) {
+        double spamTotal = 0;
+        double hamTotal = 0;
+        for (int s = 0; s < spam.length; s++) {
+            spamTotal += spam[s];
+            hamTotal += ham[s];
+        }
+        if (spamTotal == 0 || hamTotal == 0) {
+            return DEFAULT;
+        }
+        double spamTarget = (spamTotal + 1) / (spamTotal + 2);
+        double hamTarget = 1 / (hamTotal + 2);
+
+        double a = 0;
+        double b = fitIntercept ? Math.log((hamTotal + 1) / (spamTotal + 1)) : 0;
+        double value = objective(spam, ham, spamTarget, hamTarget, center, a, b);
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            // Gradient and Hessian of the negative log-likelihood
+            double h11 = SIGMA;
+            double h22 = SIGMA;
+            double h21 = 0;
+            double g1 = 0;
+            double g2 = 0;
+            for (int s = 0; s < spam.length; s++) {
+                long n = spam[s] + ham[s];
+                if (n == 0) {
+                    continue;
+                }
+                double x = s - center;
+                double f = a * x + b;
+                double p;
+                double q;
+                if (f >= 0) {
+                    p = Math.exp(-f) / (1.0 + Math.exp(-f));
+                    q = 1.0 / (1.0 + Math.exp(-f));
+                } else {
+                    p = 1.0 / (1.0 + Math.exp(f));
+                    q = Math.exp(f) / (1.0 + Math.exp(f));
+                }
+                double d2 = n * p * q;
+                h11 += x * x * d2;
+                h22 += d2;
+                h21 += x * d2;
+                double d1 = spam[s] * spamTarget + ham[s] * hamTarget - n * p;
+                g1 += x * d1;
+                g2 += d1;
+            }
+            if (!fitIntercept) {
+                g2 = 0;
+            }
+            if (Math.abs(g1) < EPSILON && Math.abs(g2) < EPSILON) {
+                break;
+            }
+
+            double da;
+            double db;
+            if (fitIntercept) {
+                double det = h11 * h22 - h21 * h21;
+                da = -(h22 * g1 - h21 * g2) / det;
+                db = -(-h21 * g1 + h11 * g2) / det;
+            } else {
+                da = -g1 / h11;
+                db = 0;
+            }
+            double gd = g1 * da + g2 * db;
+
+            // Backtracking line search
+            double step = 1;
+            while (step >= MIN_STEP) {
+                double newA = a + step * da;
+                double newB = b + step * db;
+                double newValue = objective(spam, ham, spamTarget, hamTarget, center, newA, newB);
+                if (newValue < value + 0.0001 * step * gd) {
+                    a = newA;
+                    b = newB;
+                    value = newValue;
+                    break;
+                }
+                step /= 2;
+            }
+            if (step < MIN_STEP) {
+                break;
+            }
+        }
+        return new ScoreCalibration(a, b - a * center);
+    }
+
+    private static double objective(long[] spam, long[] ham, double spamTarget, double hamTarget,
+                                    double center, double a, double b) {
+        double value = 0;
+        for (int s = 0; s < spam.length; s++) {
+            if (spam[s] + ham[s] == 0) {
+                continue;
+            }
+            double f = a * (s - center) + b;
+            value += spam[s] * loss(spamTarget, f) + ham[s] * loss(hamTarget, f);
+        }
+        return value;
+    }
+
+    private static double loss(double target, double f) {
+        return f >= 0 ? target * f + Math.log1p(Math.exp(-f)) : (target - 1) * f + Math.log1p(Math.exp(f));
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeDouble(slope);
+        out.writeDouble(intercept);
+    }
+
+    public static ScoreCalibration readFrom(ByteBuffer buffer) {
+        return new ScoreCalibration(buffer.getDouble(), buffer.getDouble());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p = 1 / (1 + exp(%.4f * score + %.4f))", slope, intercept);
+    }
+}
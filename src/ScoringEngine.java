@@ -0,0 +1,46 @@
+// The built-in scorers. Both plug into a FeaturePipeline, so the rules and
+// Naive Bayes can score a message from a single tokenization.
+public enum ScoringEngine implements FeatureScorer {
+    RULES("Rule-based", false) {
+        @Override
+        public double score(ClassifierModel model, MessageFeatures features) {
+            return model.isSpam(features) ? 1.0 : 0.0;
+        }
+    },
+    NAIVE_BAYES("Naive Bayes", true) {
+        @Override
+        public double score(ClassifierModel model, MessageFeatures features) {
+            return model.spamProbability(features);
+        }
+    };
+
+    private final String displayName;
+    private final boolean usesTokens;
+
+    ScoringEngine(String displayName, boolean usesTokens) {
+        this.displayName = displayName;
+        this.usesTokens = usesTokens;
+    }
+
+    public static ScoringEngine fromName(String name) {
+        for (ScoringEngine engine : values()) {
+            if (engine.name().equalsIgnoreCase(name) || engine.displayName.equalsIgnoreCase(name)) {
+                return engine;
+            }
+        }
+        if ("bayes".equalsIgnoreCase(name)) {
+            return NAIVE_BAYES;
+        }
+        throw new IllegalArgumentException("Unknown scoring engine: " + name);
+    }
+
+    @Override
+    public boolean usesTokens() {
+        return usesTokens;
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Spam and ham counts per sender address and per sender domain, learned
+// from the training rows and from feedback. Keys are 64-bit hashes of the
+// lower-cased address and domain, so a lookup is two probes into
+// TokenCountTables and never touches the message text.
+//
+// A sender gets a verdict only when its history is one-sided: at least
+// minEvidence messages, all of the same class. The address is asked first,
+// then the domain. Domain counts include every address in the domain, so a
+// domain with any spam never vouches for one of its senders, and a single
+// spam address in a clean domain does not make the domain known-bad.
+//
+// The From address is not authenticated, and anyone can forge one in a
+// domain that only ever sent ham. So by default a domain can only condemn
+// mail; a ham verdict needs the sender's own address. Domain ham verdicts
+// are opt-in, for mail that is authenticated before it gets here.
+public final class SenderReputation {
+    // lookup() result: the verdict, if any, and which tables knew the sender
+    public static final int UNKNOWN = 0;
+    public static final int SPAM = 1;
+    public static final int HAM = 1 << 1;
+    public static final int ADDRESS_SEEN = 1 << 2;
+    public static final int DOMAIN_SEEN = 1 << 3;
+
+    public static final int DEFAULT_MIN_EVIDENCE = 5;
+
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final TokenCountTable addresses;
+    private final TokenCountTable domains;
+
+    public SenderReputation() {
+        // Both tables are unbounded: counts only add up, so merged
+        // reputations do not depend on the order of the merge
+        this(new TokenCountTable(64, Integer.MAX_VALUE), new TokenCountTable(64, Integer.MAX_VALUE));
+    }
+
+    private SenderReputation(TokenCountTable addresses, TokenCountTable domains) {
+        this.addresses = addresses;
+        this.domains = domains;
+    }
+
+    public SenderReputation copy() {
+        return new SenderReputation(addresses.copy(), domains.copy());
+    }
+
+    // Minimum evidence configured with -Dspamfilter.reputation.minEvidence;
+    // 0 turns sender verdicts off
+    public static int minEvidenceFromSystemProperties() {
+        return Integer.getInteger("spamfilter.reputation.minEvidence", DEFAULT_MIN_EVIDENCE);
+    }
+
+    // Whether a clean domain may vouch for its senders, set with
+    // -Dspamfilter.reputation.domainHam=true; off by default
+    public static boolean domainHamFromSystemProperties() {
+        return Boolean.getBoolean("spamfilter.reputation.domainHam");
+    }
+
+    public static boolean isDecided(int result) {
+        return (result & (SPAM | HAM)) != 0;
+    }
+
+    public static boolean isSpam(int result) {
+        return (result & SPAM) != 0;
+    }
+
+    public int addresses() {
+        return addresses.size();
+    }
+
+    public int domains() {
+        return domains.size();
+    }
+
+    // Counts one message from sender; senders without an address are ignored
+    public void add(CharSequence sender, boolean spam) {
+        int start = addressStart(sender);
+        int end = addressEnd(sender, start);
+        if (start == end) {
+            return;
+        }
+        int spamDelta = spam ? 1 : 0;
+        int hamDelta = spam ? 0 : 1;
+        addresses.add(hash(sender, start, end), spamDelta, hamDelta);
+        int at = lastIndexOf(sender, '@', start, end);
+        if (at >= 0 && at + 1 < end) {
+            domains.add(hash(sender, at + 1, end), spamDelta, hamDelta);
+        }
+    }
+
+    // Adds other's counts to ours
+    public SenderReputation merge(SenderReputation other) {
+        addAll(addresses, other.addresses);
+        addAll(domains, other.domains);
+        return this;
+    }
+
+    // Verdict for sender, or UNKNOWN when neither its address nor its
+    // domain has a one-sided history of at least minEvidence messages. The
+    // domain only gives spam verdicts.
+    public int lookup(CharSequence sender, int minEvidence) {
+        return lookup(sender, minEvidence, false);
+    }
+
+    // As lookup(sender, minEvidence), letting an all-ham domain give a ham
+    // verdict when domainHam is set
+    public int lookup(CharSequence sender, int minEvidence, boolean domainHam) {
+        int start = addressStart(sender);
+        int end = addressEnd(sender, start);
+        if (start == end || minEvidence <= 0) {
+            return UNKNOWN;
+        }
+        int result = UNKNOWN;
+        int slot = addresses.find(hash(sender, start, end));
+        if (slot >= 0) {
+            result |= ADDRESS_SEEN | verdict(addresses, slot, minEvidence);
+            if (isDecided(result)) {
+                return result;
+            }
+        }
+        int at = lastIndexOf(sender, '@', start, end);
+        if (at >= 0 && at + 1 < end) {
+            slot = domains.find(hash(sender, at + 1, end));
+            if (slot >= 0) {
+                int domain = verdict(domains, slot, minEvidence);
+                result |= DOMAIN_SEEN | (domain == HAM && !domainHam ? UNKNOWN : domain);
+            }
+        }
+        return result;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        addresses.writeTo(out);
+        domains.writeTo(out);
+    }
+
+    public static SenderReputation readFrom(ByteBuffer buffer) {
+        TokenCountTable addresses = TokenCountTable.readFrom(buffer);
+        TokenCountTable domains = TokenCountTable.readFrom(buffer);
+        return new SenderReputation(addresses, domains);
+    }
+
+    public long estimatedBytes() {
+        return addresses.estimatedBytes() + domains.estimatedBytes();
+    }
+
+    private static int verdict(TokenCountTable table, int slot, int minEvidence) {
+        int spam = table.spamCountAt(slot);
+        int ham = table.hamCountAt(slot);
+        if (ham == 0 && spam >= minEvidence) {
+            return SPAM;
+        }
+        if (spam == 0 && ham >= minEvidence) {
+            return HAM;
+        }
+        return UNKNOWN;
+    }
+
+    private static void addAll(TokenCountTable target, TokenCountTable source) {
+        for (int slot = 0; slot < source.capacity(); slot++) {
+            if (source.isOccupied(slot)) {
+                target.add(source.keyAt(slot), source.spamCountAt(slot), source.hamCountAt(slot));
+            }
+        }
+    }
+
+    // The address is the part in angle brackets of "Name <user@host>", or
+    // the whole sender; surrounding whitespace is ignored
+    private static int addressStart(CharSequence sender) {
+        int open = lastIndexOf(sender, '<', 0, sender.length());
+        int start = open + 1;
+        while (start < sender.length() && sender.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int addressEnd(CharSequence sender, int start) {
+        int end = sender.length();
+        for (int i = start; i < end; i++) {
+            if (sender.charAt(i) == '>') {
+                end = i;
+                break;
+            }
+        }
+        while (end > start && sender.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int lastIndexOf(CharSequence text, char c, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // FNV-1a over the lower-cased characters, so case never splits a sender
+    private static long hash(CharSequence text, int start, int end) {
+        long hash = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            c = c < 0x80 ? SpamPatternScanner.foldAscii(c) : Character.toLowerCase(c);
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
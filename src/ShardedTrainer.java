@@ -0,0 +1,390 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Trains on a CSV in parallel. The file is cut into byte ranges that end on
+// record boundaries, each range is trained into a TrainingPartial on a
+// ForkJoinPool, and neighbouring partials are merged in file order. The
+// merged partial is identical to one trained sequentially. Each partial
+// holds at most the Naive Bayes token cap; if one after the first shard
+// reached it, counts it dropped may belong to features kept by the merge,
+// so the file is read a second time counting only the merged features.
+//
+// Usage: java ShardedTrainer check <training.csv> [threads]
+//        java ShardedTrainer partial <training.csv> <output.partial> [threads]
+//        java ShardedTrainer merge <model.bin> <input.partial>...
+public final class ShardedTrainer {
+    // Shards per thread; extra shards let idle workers steal from slow ones
+    private static final int SHARDS_PER_THREAD = 2;
+    private static final int SCAN_BUFFER = 1 << 20;
+
+    private ShardedTrainer() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java ShardedTrainer check <training.csv> [threads]");
+            System.out.println("       java ShardedTrainer partial <training.csv> <output.partial> [threads]");
+            System.out.println("       java ShardedTrainer merge <model.bin> <input.partial>...");
+            System.exit(1);
+        }
+        try {
+            run(args);
+        } catch (IOException e) {
+            System.out.println("Could not run " + args[0] + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) throws Exception {
+        switch (args[0]) {
+            case "check":
+                check(Paths.get(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : defaultThreads());
+                break;
+            case "partial": {
+                int threads = args.length > 3 ? Integer.parseInt(args[3]) : defaultThreads();
+                TrainingPartial partial = train(Paths.get(args[1]), threads);
+                partial.write(Paths.get(args[2]));
+                System.out.println("Wrote partial of " + partial.spamRows() + " spam and " + partial.hamRows()
+                    + " ham rows to " + args[2]);
+                break;
+            }
+            case "merge": {
+                List<TrainingPartial> partials = new ArrayList<>();
+                for (int i = 2; i < args.length; i++) {
+                    partials.add(TrainingPartial.read(Paths.get(args[i])));
+                }
+                EmailClassifier classifier = new EmailClassifier(partials);
+                classifier.saveModel(Paths.get(args[1]));
+                System.out.println("Wrote merged model to " + args[1]);
+                break;
+            }
+            default:
+                System.out.println("Unknown command: " + args[0]);
+                System.exit(1);
+        }
+    }
+
+    // Threads from -Dspamfilter.training.threads, default one per core
+    public static int defaultThreads() {
+        return Math.max(1, Integer.getInteger("spamfilter.training.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Trains on csv, skipping its header row, with up to threads workers
+    public static TrainingPartial train(Path csv, int threads) throws IOException {
+        return train(csv, threads, ClassifierLoader.Progress.NONE);
+    }
+
+    // As train(csv, threads), reporting the fraction of the file read
+    public static TrainingPartial train(Path csv, int threads, ClassifierLoader.Progress progress) throws IOException {
+        ClassifierMetrics metrics = ClassifierMetrics.get();
+        long start = System.nanoTime();
+        long[] bounds = threads > 1 ? split(csv, threads * SHARDS_PER_THREAD) : new long[] {0, Files.size(csv)};
+        metrics.recordTrainingStage("shard split", System.nanoTime() - start);
+        ByteProgress read = new ByteProgress(progress, bounds[bounds.length - 1]);
+        if (bounds.length == 2) {
+            return trainShard(csv, bounds, 0, read, new TrainingPartial());
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        LongAdder mergeNanos = new LongAdder();
+        try {
+            AtomicBoolean dropped = new AtomicBoolean();
+            TrainingPartial trained = pool.invoke(new ShardTask(csv, bounds, 0, bounds.length - 1, null, read,
+                mergeNanos, dropped));
+            if (dropped.get()) {
+                long recountStart = System.nanoTime();
+                trained = pool.invoke(new ShardTask(csv, bounds, 0, bounds.length - 1, trained,
+                    new ByteProgress(progress, bounds[bounds.length - 1]), mergeNanos, dropped));
+                metrics.recordTrainingStage("token cap recount", System.nanoTime() - recountStart);
+            }
+            return trained;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+            metrics.recordTrainingStage("partial merge", mergeNanos.sum());
+        }
+    }
+
+    // Trains shards [from, to) by halves and merges left then right, keeping
+    // file order. With a vocabulary, shards only count its Naive Bayes
+    // features. dropped is set when a partial that does not start the file
+    // dropped features.
+    private static final class ShardTask extends RecursiveTask<TrainingPartial> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path csv;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final TrainingPartial vocabulary;
+        private final ByteProgress read;
+        private final LongAdder mergeNanos;
+        private final AtomicBoolean dropped;
+
+        ShardTask(Path csv, long[] bounds, int from, int to, TrainingPartial vocabulary, ByteProgress read,
+                  LongAdder mergeNanos, AtomicBoolean dropped) {
+            this.csv = csv;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.vocabulary = vocabulary;
+            this.read = read;
+            this.mergeNanos = mergeNanos;
+            this.dropped = dropped;
+        }
+
+        @Override
+        protected TrainingPartial compute() {
+            if (to - from == 1) {
+                try {
+                    TrainingPartial partial = vocabulary == null ? new TrainingPartial()
+                        : TrainingPartial.restrictedTo(vocabulary);
+                    return trainShard(csv, bounds, from, read, partial);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ShardTask right = new ShardTask(csv, bounds, middle, to, vocabulary, read, mergeNanos, dropped);
+            right.fork();
+            TrainingPartial left = new ShardTask(csv, bounds, from, middle, vocabulary, read, mergeNanos, dropped)
+                .compute();
+            TrainingPartial trained = right.join();
+            // Drops in a partial that starts the file are the ones sequential
+            // training makes; drops further on reach here through a right half
+            if (trained.bayesModel().droppedFeatures()) {
+                dropped.set(true);
+            }
+            long start = System.nanoTime();
+            left.merge(trained);
+            mergeNanos.add(System.nanoTime() - start);
+            return left;
+        }
+    }
+
+    private static TrainingPartial trainShard(Path csv, long[] bounds, int shard, ByteProgress read,
+                                              TrainingPartial partial) throws IOException {
+        try (CsvReader reader = openShard(csv, bounds, shard, read)) {
+            return partial.addRows(reader);
+        }
+    }
+
+    // Reader over the records of shard [bounds[shard], bounds[shard + 1]) of
+    // a file cut by split(), past the header row in shard 0
+    static CsvReader openShard(Path csv, long[] bounds, int shard) throws IOException {
+        return openShard(csv, bounds, shard, new ByteProgress(ClassifierLoader.Progress.NONE, 0));
+    }
+
+    private static CsvReader openShard(Path csv, long[] bounds, int shard, ByteProgress read) throws IOException {
+        FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ);
+        // Decoded like the FileReader sequential training used
+        CsvReader reader = new CsvReader(new InputStreamReader(
+            new BufferedInputStream(new RangeInputStream(channel, bounds[shard], bounds[shard + 1], read), 1 << 16),
+            Charset.defaultCharset()));
+        if (shard == 0) {
+            try {
+                reader.nextRecord(); // Skip header
+            } catch (IOException e) {
+                reader.close();
+                throw e;
+            }
+        }
+        return reader;
+    }
+
+    // Offsets 0 = b0 < b1 < ... < bn = size where every bi is the start of a
+    // CSV record, at or just after i * size / shards. Record ends are found
+    // with the same quote rules as CsvReader, applied to bytes. This is valid
+    // for UTF-8 and single-byte charsets; for others the file is one shard.
+    public static long[] split(Path csv, int shards) throws IOException {
+        try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (shards <= 1 || size == 0 || !asciiCompatible(Charset.defaultCharset())) {
+                return new long[] {0, size};
+            }
+            long[] bounds = new long[shards + 1];
+            int count = 1;
+            long target = size / shards;
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_BUFFER);
+            long offset = 0;
+            boolean quoted = false;
+            boolean quoteSeen = false;   // inside quotes: a quote that may be the first of ""
+            boolean fieldHasChars = false;
+            boolean afterCr = false;
+            scan:
+            while (channel.read(buffer, offset) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    long recordEnd = -1;
+                    if (afterCr) {
+                        // "\r\n" ends the record after the '\n', a lone '\r' before b
+                        afterCr = false;
+                        recordEnd = b == '\n' ? offset + 1 : offset;
+                    }
+                    if (recordEnd != offset + 1) {
+                        if (quoteSeen) {
+                            quoteSeen = false;
+                            if (b == '"') {
+                                fieldHasChars = true;
+                                offset++;
+                                continue;
+                            }
+                            quoted = false;
+                        }
+                        if (quoted) {
+                            if (b == '"') {
+                                quoteSeen = true;
+                            } else {
+                                fieldHasChars = true;
+                            }
+                        } else if (b == '\n') {
+                            fieldHasChars = false;
+                            recordEnd = offset + 1;
+                        } else if (b == '\r') {
+                            fieldHasChars = false;
+                            afterCr = true;
+                        } else if (b == ',') {
+                            fieldHasChars = false;
+                        } else if (b == '"' && !fieldHasChars) {
+                            quoted = true;
+                        } else {
+                            fieldHasChars = true;
+                        }
+                    }
+                    offset++;
+                    if (recordEnd >= target && recordEnd < size) {
+                        bounds[count++] = recordEnd;
+                        if (count == shards) {
+                            break scan;
+                        }
+                        target = size * count / shards;
+                    }
+                }
+                buffer.clear();
+            }
+            bounds[count++] = size;
+            return Arrays.copyOf(bounds, count);
+        }
+    }
+
+    // Byte offsets of the CSV syntax characters can only be trusted when no
+    // multi-byte sequence can contain them
+    private static boolean asciiCompatible(Charset charset) {
+        boolean singleByte = charset.newEncoder().maxBytesPerChar() == 1.0f;
+        return (singleByte || charset.equals(StandardCharsets.UTF_8))
+            && Arrays.equals("\"\r\n,".getBytes(charset), new byte[] {'"', '\r', '\n', ','});
+    }
+
+    // Trains sequentially and sharded, compares the model files byte for
+    // byte and reports both times
+    private static void check(Path csv, int threads) throws Exception {
+        Path sequentialModel = Files.createTempFile("sequential", ".bin");
+        Path shardedModel = Files.createTempFile("sharded", ".bin");
+        try {
+            long start = System.nanoTime();
+            new EmailClassifier(csv.toString(), 1).saveModel(sequentialModel);
+            long sequential = System.nanoTime() - start;
+            start = System.nanoTime();
+            new EmailClassifier(csv.toString(), threads).saveModel(shardedModel);
+            long sharded = System.nanoTime() - start;
+
+            boolean identical = Arrays.equals(Files.readAllBytes(sequentialModel), Files.readAllBytes(shardedModel));
+            System.out.printf("sequential: %.1f ms, %d threads: %.1f ms (%.2fx), models %s%n",
+                sequential / 1e6, threads, sharded / 1e6, (double) sequential / sharded,
+                identical ? "identical" : "DIFFER");
+            if (!identical) {
+                System.exit(1);
+            }
+        } finally {
+            Files.deleteIfExists(sequentialModel);
+            Files.deleteIfExists(shardedModel);
+        }
+    }
+
+    // Turns the bytes read by all shards into progress updates, at most one
+    // per percent
+    private static final class ByteProgress {
+        private final ClassifierLoader.Progress progress;
+        private final long total;
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicInteger percent = new AtomicInteger(-1);
+
+        ByteProgress(ClassifierLoader.Progress progress, long total) {
+            this.progress = progress;
+            this.total = total;
+            add(0);
+        }
+
+        void add(long bytes) {
+            long done = read.addAndGet(bytes);
+            int now = total == 0 ? 100 : (int) (done * 100 / total);
+            int last = percent.get();
+            if (now > last && percent.compareAndSet(last, now)) {
+                progress.update("Training", total == 0 ? 1.0 : (double) done / total);
+            }
+        }
+    }
+
+    // Reads [start, end) of a channel with positional reads and closes the
+    // channel when closed
+    private static final class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+        private final ByteProgress read;
+
+        RangeInputStream(FileChannel channel, long start, long end, ByteProgress read) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.read = read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)), position);
+            if (n > 0) {
+                position += n;
+                read.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
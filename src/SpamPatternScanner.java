@@ -0,0 +1,76 @@
+import java.util.Locale;
+
+public final class SpamPatternScanner {
+    public static final int ASCII_ONLY = 1;
+    public static final int LINE_TERMINATOR = 1 << 1;
+    public static final int DOLLAR_AMOUNT = 1 << 2;
+    public static final int MULTIPLE_EXCLAMATION = 1 << 3;
+    public static final int HAS_LETTER = 1 << 4;
+
+    private SpamPatternScanner() {
+    }
+
+    // Single pass over text collecting the flags above. DOLLAR_AMOUNT means
+    // "$" directly followed by an ASCII digit, MULTIPLE_EXCLAMATION means "!!"
+    // and HAS_LETTER is only meaningful for ASCII_ONLY text.
+    public static int scan(CharSequence text) {
+        int flags = ASCII_ONLY;
+        char previous = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            flags = accumulate(flags, previous, c);
+            previous = c;
+        }
+        return flags;
+    }
+
+    // Adds the flags contributed by c, given the character before it; lets
+    // other single-pass scanners such as TokenizedText collect the same flags
+    static int accumulate(int flags, char previous, char c) {
+        if (c >= 0x80) {
+            flags &= ~ASCII_ONLY;
+            if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                flags |= LINE_TERMINATOR;
+            }
+        } else if (c == '\n' || c == '\r') {
+            flags |= LINE_TERMINATOR;
+        } else if (c >= '0' && c <= '9') {
+            if (previous == '$') {
+                flags |= DOLLAR_AMOUNT;
+            }
+        } else if (c == '!') {
+            if (previous == '!') {
+                flags |= MULTIPLE_EXCLAMATION;
+            }
+        } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            flags |= HAS_LETTER;
+        }
+        return flags;
+    }
+
+    // Equivalent of text.matches(".*\\$\\d+.*"); "." never crosses a line
+    // terminator, so the regex could not match multi-line text
+    public static boolean hasDollarAmount(int flags) {
+        return (flags & (DOLLAR_AMOUNT | LINE_TERMINATOR)) == DOLLAR_AMOUNT;
+    }
+
+    // Equivalent of text.matches(".*[!]{2,}.*")
+    public static boolean hasMultipleExclamation(int flags) {
+        return (flags & (MULTIPLE_EXCLAMATION | LINE_TERMINATOR)) == MULTIPLE_EXCLAMATION;
+    }
+
+    // Whether ASCII text may be lower-cased char by char with the same result
+    // as String.toLowerCase() in the default locale
+    public static boolean canFoldAscii(int flags) {
+        return (flags & ASCII_ONLY) != 0 && !hasSpecialCasing(Locale.getDefault());
+    }
+
+    static boolean hasSpecialCasing(Locale locale) {
+        String language = locale.getLanguage();
+        return language.equals("tr") || language.equals("az") || language.equals("lt");
+    }
+
+    public static char foldAscii(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.Collections;
+import java.util.List;
+
+// Everything classification found out about one message: the rule score,
+// its calibrated spam probability, the sender's reputation and, when asked
+// for, what each rule feature added to the score. Callers can route mail
+// by several thresholds from one result instead of classifying twice.
+public final class SpamScore {
+    private final int score;
+    private final double probability;
+    private final int sender;
+    private final List<Contribution> contributions;
+
+    SpamScore(int score, double probability, int sender, List<Contribution> contributions) {
+        this.score = score;
+        this.probability = probability;
+        this.sender = sender;
+        this.contributions = contributions == null ? Collections.emptyList() : Collections.unmodifiableList(contributions);
+    }
+
+    // Rule score of the content; SPAM_THRESHOLD and above is spam
+    public int score() {
+        return score;
+    }
+
+    // The score mapped through the model's ScoreCalibration
+    public double probability() {
+        return probability;
+    }
+
+    // SenderReputation.lookup() result for the sender, UNKNOWN when sender
+    // verdicts are off
+    public int senderVerdict() {
+        return sender;
+    }
+
+    // The verdict classifyEmail() gives: the sender's if it has one,
+    // otherwise the score against SPAM_THRESHOLD
+    public boolean isSpam() {
+        return isSpam(score, sender);
+    }
+
+    // The same verdict from a rule score and a senderVerdict() result, for
+    // entry points that score without building a SpamScore
+    public static boolean isSpam(int score, int senderVerdict) {
+        if (SenderReputation.isDecided(senderVerdict)) {
+            return SenderReputation.isSpam(senderVerdict);
+        }
+        return score >= EmailClassifier.SPAM_THRESHOLD;
+    }
+
+    // What each keyword, subject phrase and pattern added, in scoring order;
+    // the points sum to score(). Empty unless contributions were requested.
+    public List<Contribution> contributions() {
+        return contributions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SpamScore{score=%d, probability=%.3f, spam=%b}", score, probability, isSpam());
+    }
+
+    // One rule feature found in the message and the points it added
+    public static final class Contribution {
+        private final String feature;
+        private final String match;
+        private final int points;
+
+        Contribution(String feature, String match, int points) {
+            this.feature = feature;
+            this.match = match;
+            this.points = points;
+        }
+
+        // "keyword", "subject phrase", "dollar amount", "exclamation marks"
+        // or "all-caps subject"
+        public String feature() {
+            return feature;
+        }
+
+        // The matched keyword or phrase as it appears lower-cased in the
+        // message, or null for the patterns
+        public String match() {
+            return match;
+        }
+
+        public int points() {
+            return points;
+        }
+
+        @Override
+        public String toString() {
+            return feature + (match == null ? "" : " \"" + match + "\"") + " +" + points;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// FIFO queue of emails between a producer that must keep going, such as an
+// input stream, and workers that may fall behind. Messages are stored as
+// EncodedEmail records framed by an int length: first in a ring buffer of
+// memoryBytes outside the heap, and once that is full, appended to a
+// temporary spill file. The backlog of a slow stage therefore costs disk
+// space instead of heap. New records go to the file for as long as it holds
+// any, so the order is kept; when the file is drained it is truncated and
+// the ring is used again. put() only blocks when the spill file has reached
+// maxSpillBytes. The file is unlinked as soon as it is open where the
+// platform allows, so it never outlives the process; elsewhere it is
+// deleted on close.
+//
+// Any number of threads may put and take. Typical use:
+//   producer: queue.put(email) for each message, then queue.finish()
+//   consumer: while ((email = queue.take()) != null) { ... }, then close()
+public final class SpillQueue implements Closeable {
+    public static final int DEFAULT_MEMORY_BYTES = 64 << 20;
+    public static final long DEFAULT_MAX_SPILL_BYTES = 4L << 30;
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static final int IO_BUFFER = 1 << 18;
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(1 << 12));
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // Ring of framed records; head and tail count bytes since creation
+    private final ByteBuffer ring;
+    private long ringHead;
+    private long ringTail;
+    private int ringRecords;
+
+    // Spill file, opened on first use. Records in [spillRead, spillFlushed)
+    // are in the file, those in [spillFlushed, spillWrite) still in
+    // writeBuffer. readBuffer holds the file from readBufferStart on.
+    private final Path spillDirectory;
+    private final long maxSpillBytes;
+    private FileChannel spill;
+    private long spillRead;
+    private long spillFlushed;
+    private long spillWrite;
+    private long spillRecords;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(IO_BUFFER);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(IO_BUFFER).limit(0);
+    private long readBufferStart;
+
+    private long spilledTotal;
+    private boolean finished;
+    private boolean closed;
+
+    public SpillQueue(int memoryBytes, Path spillDirectory, long maxSpillBytes) {
+        if (memoryBytes < 0 || maxSpillBytes < 0) {
+            throw new IllegalArgumentException("Sizes must not be negative");
+        }
+        this.ring = ByteBuffer.allocateDirect(memoryBytes);
+        this.spillDirectory = spillDirectory;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    // Sizes from -Dspamfilter.queue.memoryBytes (default 64 MB),
+    // -Dspamfilter.queue.maxSpillBytes (default 4 GB) and
+    // -Dspamfilter.queue.spillDir (default the temporary directory)
+    public static SpillQueue fromSystemProperties() {
+        int memoryBytes = Integer.getInteger("spamfilter.queue.memoryBytes", DEFAULT_MEMORY_BYTES);
+        long maxSpillBytes = Long.getLong("spamfilter.queue.maxSpillBytes", DEFAULT_MAX_SPILL_BYTES);
+        Path directory = Paths.get(System.getProperty("spamfilter.queue.spillDir", System.getProperty("java.io.tmpdir")));
+        return new SpillQueue(memoryBytes, directory, maxSpillBytes);
+    }
+
+    // Queues email, spilling it to disk if the ring is full. Blocks only
+    // while the spill file is at maxSpillBytes; a record larger than that
+    // is still accepted into an empty file.
+    public void put(Email email) throws IOException, InterruptedException {
+        // Encoded outside the lock; only the copy is made holding it
+        int length = EncodedEmail.encodedLength(email);
+        ByteBuffer frame = scratch(Integer.BYTES + length);
+        frame.putInt(length);
+        EncodedEmail.encode(email, frame);
+        frame.flip();
+
+        lock.lock();
+        try {
+            while (true) {
+                if (finished || closed) {
+                    throw new IllegalStateException("Queue no longer accepts messages");
+                }
+                if (spillRecords == 0 && ring.capacity() - (ringTail - ringHead) >= frame.remaining()) {
+                    writeRing(frame);
+                    ringRecords++;
+                    break;
+                }
+                if (spillRecords == 0 || spillWrite + frame.remaining() <= maxSpillBytes) {
+                    writeSpill(frame);
+                    spillRecords++;
+                    spilledTotal++;
+                    break;
+                }
+                notFull.await();
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The oldest message, waiting for one if the queue is empty; null once
+    // the queue is empty after finish(), or after close()
+    public EncodedEmail take() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (ringRecords == 0 && spillRecords == 0) {
+                if (finished || closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            ByteBuffer record;
+            if (ringRecords > 0) {
+                record = takeRing();
+                ringRecords--;
+            } else {
+                record = takeSpill();
+                if (--spillRecords == 0) {
+                    resetSpill();
+                }
+            }
+            notFull.signalAll();
+            return EncodedEmail.wrap(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // No more messages will be put; take() returns null once the queue is
+    // drained
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages waiting, in memory and on disk
+    public long size() {
+        lock.lock();
+        try {
+            return ringRecords + spillRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages that went through the spill file since the queue was created
+    public long spilled() {
+        lock.lock();
+        try {
+            return spilledTotal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops anything still queued and deletes the spill file
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            ringRecords = 0;
+            spillRecords = 0;
+            ringHead = ringTail;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ByteBuffer scratch(int capacity) {
+        ByteBuffer buffer = SCRATCH.get();
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+            SCRATCH.set(buffer);
+        }
+        return buffer.clear();
+    }
+
+    private void writeRing(ByteBuffer frame) {
+        int capacity = ring.capacity();
+        while (frame.hasRemaining()) {
+            int index = (int) (ringTail % capacity);
+            int n = Math.min(frame.remaining(), capacity - index);
+            ring.put(index, frame, frame.position(), n);
+            frame.position(frame.position() + n);
+            ringTail += n;
+        }
+    }
+
+    private void readRing(byte[] target, int length) {
+        int capacity = ring.capacity();
+        int done = 0;
+        while (done < length) {
+            int index = (int) (ringHead % capacity);
+            int n = Math.min(length - done, capacity - index);
+            ring.get(index, target, done, n);
+            done += n;
+            ringHead += n;
+        }
+    }
+
+    private ByteBuffer takeRing() {
+        byte[] header = new byte[Integer.BYTES];
+        readRing(header, header.length);
+        byte[] record = new byte[ByteBuffer.wrap(header).getInt()];
+        readRing(record, record.length);
+        return ByteBuffer.wrap(record);
+    }
+
+    private void writeSpill(ByteBuffer frame) throws IOException {
+        if (spill == null) {
+            Path file = Files.createTempFile(spillDirectory, "spamfilter-queue", ".spill");
+            spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+            try {
+                // The open channel keeps the data; no name is left behind
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Open files cannot be deleted on Windows; DELETE_ON_CLOSE covers it
+            }
+        }
+        if (frame.remaining() > writeBuffer.remaining()) {
+            flushSpill();
+        }
+        int length = frame.remaining();
+        if (length > writeBuffer.capacity()) {
+            // Larger than the buffer: straight to the file
+            while (frame.hasRemaining()) {
+                spillFlushed += spill.write(frame, spillFlushed);
+            }
+        } else {
+            writeBuffer.put(frame);
+        }
+        spillWrite += length;
+    }
+
+    private void flushSpill() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            spillFlushed += spill.write(writeBuffer, spillFlushed);
+        }
+        writeBuffer.clear();
+    }
+
+    private ByteBuffer takeSpill() throws IOException {
+        if (spillRead == spillFlushed) {
+            // The oldest record is still in the write buffer
+            flushSpill();
+        }
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        readSpill(header);
+        ByteBuffer record = ByteBuffer.allocate(header.flip().getInt());
+        readSpill(record);
+        return record.flip();
+    }
+
+    // Fills target from the file at spillRead through readBuffer
+    private void readSpill(ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            long offset = spillRead - readBufferStart;
+            if (offset < 0 || offset >= readBuffer.limit()) {
+                if (target.remaining() > readBuffer.capacity()) {
+                    // Larger than the buffer: straight from the file
+                    spillRead += readFully(target, spillRead);
+                    continue;
+                }
+                readBuffer.clear();
+                readBufferStart = spillRead;
+                readFully(readBuffer.limit((int) Math.min(readBuffer.capacity(), spillFlushed - spillRead)), spillRead);
+                readBuffer.flip();
+                offset = 0;
+            }
+            int n = (int) Math.min(target.remaining(), readBuffer.limit() - offset);
+            target.put(target.position(), readBuffer, (int) offset, n);
+            target.position(target.position() + n);
+            spillRead += n;
+        }
+    }
+
+    private int readFully(ByteBuffer target, long position) throws IOException {
+        int total = 0;
+        while (target.hasRemaining()) {
+            int n = spill.read(target, position + total);
+            if (n < 0) {
+                throw new IOException("Spill file ended at " + (position + total) + " of " + spillFlushed);
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    // The file is empty again: start over at offset 0 and give the space back
+    private void resetSpill() throws IOException {
+        spillRead = 0;
+        spillFlushed = 0;
+        spillWrite = 0;
+        writeBuffer.clear();
+        readBuffer.limit(0);
+        readBufferStart = 0;
+        spill.truncate(0);
+    }
+}
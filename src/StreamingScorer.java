@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+
+// Rule-scores a message whose body is read in fixed-size chunks rather than
+// held as one String, so peak memory does not grow with the body. Keyword
+// matching keeps the automaton state between chunks and the pattern flags
+// keep the previous character, so phrases and "$123" that straddle a chunk
+// boundary are still found.
+//
+// Chunks are lower-cased one at a time. They are only cut after a space,
+// digit or control character, where no case mapping rule (final sigma,
+// Turkish dotted I, ...) looks across the cut, so scores equal
+// ClassifierModel.scoreEmail() on the whole body. A run of more than
+// CHUNK_CHARS characters without such a character is cut anyway, between
+// code points.
+public final class StreamingScorer {
+    public static final int CHUNK_CHARS = 8192;
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private final ClassifierModel model;
+
+    public StreamingScorer(ClassifierModel model) {
+        this.model = model;
+    }
+
+    // Full rule score of the first limit characters of body
+    public int score(CharSequence subject, Reader body, long limit) throws IOException {
+        Pass pass = new Pass(subject, false);
+        pass.read(body, limit);
+        return pass.score();
+    }
+
+    // Verdict on the first limit characters of body. Reading stops as soon
+    // as the keywords found settle it.
+    public boolean isSpam(CharSequence subject, Reader body, long limit) throws IOException {
+        Pass pass = new Pass(subject, true);
+        pass.read(body, limit);
+        return pass.score() >= EmailClassifier.SPAM_THRESHOLD;
+    }
+
+    // Full rule score of the first limit bytes of body, decoded with charset;
+    // the buffer's position is left unchanged
+    public int score(CharSequence subject, ByteBuffer body, Charset charset, long limit) {
+        Pass pass = new Pass(subject, false);
+        pass.decode(body, charset, limit);
+        return pass.score();
+    }
+
+    public boolean isSpam(CharSequence subject, ByteBuffer body, Charset charset, long limit) {
+        Pass pass = new Pass(subject, true);
+        pass.decode(body, charset, limit);
+        return pass.score() >= EmailClassifier.SPAM_THRESHOLD;
+    }
+
+    // One message: the subject part of the score is settled up front, the
+    // body is fed chunk by chunk
+    private final class Pass {
+        private final boolean stopWhenSpam;
+        private final int subjectScore;
+        private final boolean specialCasing = SpamPatternScanner.hasSpecialCasing(Locale.getDefault());
+        private final AhoCorasickMatcher.Scan keywords = model.keywordMatcher().newScan();
+        private final char[] chunk = new char[CHUNK_CHARS];
+        private int length;
+        private int bodyFlags = SpamPatternScanner.ASCII_ONLY;
+        private char previous;
+        private boolean decided;
+
+        Pass(CharSequence subject, boolean stopWhenSpam) {
+            this.stopWhenSpam = stopWhenSpam;
+            int subjectFlags = SpamPatternScanner.scan(subject);
+            int subjectPhraseMatches;
+            boolean allCapsSubject;
+            if (SpamPatternScanner.canFoldAscii(subjectFlags)) {
+                subjectPhraseMatches = model.subjectPhraseMatcher().countMatchesFoldingAscii(subject);
+                allCapsSubject = (subjectFlags & SpamPatternScanner.HAS_LETTER) == 0 && subject.length() > 10;
+            } else {
+                String lowerSubject = subject.toString().toLowerCase();
+                subjectPhraseMatches = model.subjectPhraseMatcher().countMatches(lowerSubject);
+                allCapsSubject = lowerSubject.toUpperCase().equals(lowerSubject) && lowerSubject.length() > 10;
+            }
+            subjectScore = ClassifierModel.ruleScore(0, false, subjectPhraseMatches,
+                SpamPatternScanner.hasMultipleExclamation(subjectFlags), allCapsSubject);
+            // The dollar bonus can only add, so keywords alone can decide the verdict
+            decided = stopWhenSpam && subjectScore + keywords.matches() >= EmailClassifier.SPAM_THRESHOLD;
+        }
+
+        void read(Reader body, long limit) throws IOException {
+            long remaining = limit;
+            while (!decided && remaining > 0) {
+                int n = body.read(chunk, length, (int) Math.min(chunk.length - length, remaining));
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+                remaining -= n;
+                if (length == chunk.length) {
+                    feedChunk(false);
+                }
+            }
+            feedChunk(true);
+        }
+
+        void decode(ByteBuffer body, Charset charset, long limit) {
+            ByteBuffer in = body.duplicate();
+            if (limit < in.remaining()) {
+                in.limit(in.position() + (int) limit);
+            }
+            // Malformed input becomes U+FFFD, as in new String(bytes, charset)
+            CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer out = CharBuffer.wrap(chunk);
+            CoderResult result;
+            do {
+                out.limit(chunk.length).position(length);
+                result = decoder.decode(in, out, true);
+                length = out.position();
+                if (result.isOverflow()) {
+                    feedChunk(false);
+                }
+            } while (!decided && result.isOverflow());
+            while (!decided) {
+                out.limit(chunk.length).position(length);
+                result = decoder.flush(out);
+                length = out.position();
+                if (!result.isOverflow()) {
+                    break;
+                }
+                feedChunk(false);
+            }
+            feedChunk(true);
+        }
+
+        int score() {
+            return subjectScore + keywords.matches()
+                + (SpamPatternScanner.hasDollarAmount(bodyFlags) ? 2 : 0);
+        }
+
+        // Feeds the chunk up to its last safe cut, or all of it at the end
+        private void feedChunk(boolean end) {
+            if (decided) {
+                return;
+            }
+            int cut = end ? length : lastSafeCut();
+            int flags = bodyFlags;
+            char last = previous;
+            for (int i = 0; i < cut; i++) {
+                char c = chunk[i];
+                flags = SpamPatternScanner.accumulate(flags, last, c);
+                last = c;
+            }
+            bodyFlags = flags;
+            previous = last;
+
+            boolean ascii = true;
+            for (int i = 0; i < cut && ascii; i++) {
+                ascii = chunk[i] < 0x80;
+            }
+            if (ascii && !specialCasing) {
+                keywords.feed(chunk, 0, cut, true);
+            } else {
+                keywords.feed(new String(chunk, 0, cut).toLowerCase());
+            }
+            System.arraycopy(chunk, cut, chunk, 0, length - cut);
+            length -= cut;
+            decided = stopWhenSpam && subjectScore + keywords.matches() >= EmailClassifier.SPAM_THRESHOLD;
+        }
+
+        private int lastSafeCut() {
+            for (int i = length - 1; i >= 0; i--) {
+                char c = chunk[i];
+                if (c <= ' ' || (c >= '0' && c <= '9') || Character.isWhitespace(c)) {
+                    return i + 1;
+                }
+            }
+            // No safe place: cut between code points
+            return length > 0 && Character.isHighSurrogate(chunk[length - 1]) ? length - 1 : length;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Generates corpora of any size that follow the distribution of a labelled
+// CSV such as training_data.csv. It keeps the spam/ham ratio, the per-class
+// word frequencies, the subject and body lengths in words, and the senders.
+// Words keep their case and punctuation, so "$100" and "!!" survive.
+// Usage: java SyntheticCorpus <output.csv> <rows> [source.csv] [seed]
+public class SyntheticCorpus {
+    private final double spamFraction;
+    private final Profile spam;
+    private final Profile ham;
+
+    // Observed values for one class; sampling a list uniformly reproduces
+    // the frequencies it was filled with
+    private static final class Profile {
+        final List<String> subjectWords = new ArrayList<>();
+        final List<String> bodyWords = new ArrayList<>();
+        final List<Integer> subjectLengths = new ArrayList<>();
+        final List<Integer> bodyLengths = new ArrayList<>();
+        final List<String> senders = new ArrayList<>();
+
+        void add(String sender, String subject, String body) {
+            senders.add(sender);
+            subjectLengths.add(addWords(subject, subjectWords));
+            bodyLengths.add(addWords(body, bodyWords));
+        }
+
+        private static int addWords(String text, List<String> words) {
+            int count = 0;
+            for (String word : text.trim().split("\\s+")) {
+                if (!word.isEmpty()) {
+                    words.add(word);
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private SyntheticCorpus(double spamFraction, Profile spam, Profile ham) {
+        this.spamFraction = spamFraction;
+        this.spam = spam;
+        this.ham = ham;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java SyntheticCorpus <output.csv> <rows> [source.csv] [seed]");
+            System.exit(1);
+        }
+        Path output = Paths.get(args[0]);
+        int rows = Integer.parseInt(args[1]);
+        String source = args.length > 2 ? args[2] : EmailClassifier.DEFAULT_TRAINING_DATA;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+
+        try {
+            fromCsv(source).write(output, rows, seed);
+            System.out.println("Wrote " + rows + " synthetic emails to " + output);
+        } catch (IOException e) {
+            System.out.println("Could not generate corpus: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Learns the distribution from a CSV with body,sender,subject,class columns
+    public static SyntheticCorpus fromCsv(String path) throws IOException {
+        Profile spam = new Profile();
+        Profile ham = new Profile();
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
+             CsvReader reader = new CsvReader(in)) {
+            reader.nextRecord(); // Skip header
+            while (reader.nextRecord()) {
+                if (reader.fieldCount() >= 4) {
+                    Profile profile = reader.fieldEquals(3, "spam") ? spam : ham;
+                    profile.add(reader.fieldAsString(1), reader.fieldAsString(2), reader.fieldAsString(0));
+                }
+            }
+        }
+        int total = spam.senders.size() + ham.senders.size();
+        if (spam.senders.isEmpty() || ham.senders.isEmpty()) {
+            throw new IOException("Source needs both spam and ham rows: " + path);
+        }
+        return new SyntheticCorpus((double) spam.senders.size() / total, spam, ham);
+    }
+
+    public double spamFraction() {
+        return spamFraction;
+    }
+
+    public Email next(Random random, boolean isSpam) {
+        Profile profile = isSpam ? spam : ham;
+        String sender = pick(random, profile.senders);
+        String subject = words(random, profile.subjectWords, pick(random, profile.subjectLengths));
+        String body = words(random, profile.bodyWords, pick(random, profile.bodyLengths));
+        return new Email(sender, subject, body);
+    }
+
+    public Email next(Random random) {
+        return next(random, random.nextDouble() < spamFraction);
+    }
+
+    // Writes rows labelled emails in the training CSV layout
+    public void write(Path output, int rows, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            out.write("body,sender,subject,class\n");
+            for (int i = 0; i < rows; i++) {
+                boolean isSpam = random.nextDouble() < spamFraction;
+                Email email = next(random, isSpam);
+                out.write(quote(email.getBody()));
+                out.write(',');
+                out.write(quote(email.getSender()));
+                out.write(',');
+                out.write(quote(email.getSubject()));
+                out.write(isSpam ? ",spam\n" : ",ham\n");
+            }
+        }
+    }
+
+    private static String words(Random random, List<String> words, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(pick(random, words));
+        }
+        return sb.toString();
+    }
+
+    private static <T> T pick(Random random, List<T> values) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private static String quote(String field) {
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Scores a labelled CSV (body,sender,subject,class), the training_data.csv
+// layout, with the rules engine and reports precision, recall, F1 and
+// false-positive rate for every threshold, next to the calibrated
+// probability of that score. The file is cut into shards like
+// ShardedTrainer cuts it, each shard is scored into a histogram of rule
+// scores per class, and the histograms are added up, so every threshold
+// comes from one pass over the file. Sender reputation is left out: it
+// decides before any threshold does.
+//
+// Usage: java ThresholdSweep <labelled.csv> [threads] [trainingData] [model]
+public final class ThresholdSweep {
+    private final long[] spam = new long[ScoreCalibration.SCORE_BUCKETS];
+    private final long[] ham = new long[ScoreCalibration.SCORE_BUCKETS];
+
+    private ThresholdSweep() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java ThresholdSweep <labelled.csv> [threads] [trainingData] [model]");
+            System.exit(1);
+        }
+        Path csv = Paths.get(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        String trainingData = args.length > 2 ? args[2] : EmailClassifier.DEFAULT_TRAINING_DATA;
+        String model = args.length > 3 ? args[3] : EmailClassifier.DEFAULT_MODEL;
+
+        try {
+            ClassifierModel current = EmailClassifier.load(trainingData, model).currentModel();
+            long start = System.nanoTime();
+            ThresholdSweep sweep = sweep(current, csv, threads);
+            long elapsed = System.nanoTime() - start;
+            long rows = sweep.spamTotal() + sweep.hamTotal();
+            System.out.printf("Scored %d messages (%d spam, %d ham) in %.1f ms with %d threads, %.0f messages/s%n",
+                rows, sweep.spamTotal(), sweep.hamTotal(), elapsed / 1e6, threads, rows / (elapsed / 1e9));
+            sweep.print(current.calibration());
+            System.out.println("Model calibration:       " + current.calibration());
+            System.out.println("Calibration on this file: " + ScoreCalibration.fit(sweep.spam, sweep.ham));
+        } catch (Exception e) {
+            System.out.println("Could not sweep thresholds: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Histograms of the rule scores of csv's rows under model
+    static ThresholdSweep sweep(ClassifierModel model, Path csv, int threads) throws Exception {
+        long[] bounds = ShardedTrainer.split(csv, threads > 1 ? threads * 2 : 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ThresholdSweep>> shards = new ArrayList<>();
+            for (int shard = 0; shard + 1 < bounds.length; shard++) {
+                int index = shard;
+                shards.add(executor.submit(() -> scoreShard(model, csv, bounds, index)));
+            }
+            ThresholdSweep total = new ThresholdSweep();
+            for (Future<ThresholdSweep> shard : shards) {
+                total.merge(shard.get());
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ThresholdSweep scoreShard(ClassifierModel model, Path csv, long[] bounds, int shard)
+            throws IOException {
+        ThresholdSweep sweep = new ThresholdSweep();
+        MessageFeatures features = new MessageFeatures();
+        try (CsvReader reader = ShardedTrainer.openShard(csv, bounds, shard)) {
+            while (reader.nextRecord()) {
+                if (reader.fieldCount() < 4) {
+                    continue;
+                }
+                features.extract(reader.field(2), reader.field(0), false);
+                int score = ScoreCalibration.bucket(model.scoreEmail(features, false));
+                if (reader.fieldEquals(3, "spam")) {
+                    sweep.spam[score]++;
+                } else {
+                    sweep.ham[score]++;
+                }
+            }
+        } finally {
+            features.release();
+        }
+        return sweep;
+    }
+
+    private void merge(ThresholdSweep other) {
+        for (int s = 0; s < spam.length; s++) {
+            spam[s] += other.spam[s];
+            ham[s] += other.ham[s];
+        }
+    }
+
+    long spamTotal() {
+        long total = 0;
+        for (long count : spam) {
+            total += count;
+        }
+        return total;
+    }
+
+    long hamTotal() {
+        long total = 0;
+        for (long count : ham) {
+            total += count;
+        }
+        return total;
+    }
+
+    // One line per threshold up to the highest score seen; a message is
+    // spam at threshold t when its score is at least t
+    private void print(ScoreCalibration calibration) {
+        int highest = 0;
+        for (int s = 0; s < spam.length; s++) {
+            if (spam[s] + ham[s] > 0) {
+                highest = s;
+            }
+        }
+        long spamTotal = spamTotal();
+        long hamTotal = hamTotal();
+        // Counts at or above the threshold, built from the top down
+        long[] spamAbove = new long[highest + 2];
+        long[] hamAbove = new long[highest + 2];
+        for (int s = highest; s >= 0; s--) {
+            spamAbove[s] = spamAbove[s + 1] + spam[s];
+            hamAbove[s] = hamAbove[s + 1] + ham[s];
+        }
+
+        System.out.printf("%9s %8s %9s %9s %9s %9s %9s %9s%n",
+            "threshold", "p(spam)", "spam>=t", "ham>=t", "precision", "recall", "F1", "FPR");
+        for (int t = 0; t <= highest; t++) {
+            long truePositives = spamAbove[t];
+            long falsePositives = hamAbove[t];
+            double precision = truePositives + falsePositives == 0 ? 1.0
+                : (double) truePositives / (truePositives + falsePositives);
+            double recall = spamTotal == 0 ? 0.0 : (double) truePositives / spamTotal;
+            double f1 = precision + recall == 0 ? 0.0 : 2 * precision * recall / (precision + recall);
+            double falsePositiveRate = hamTotal == 0 ? 0.0 : (double) falsePositives / hamTotal;
+            System.out.printf("%8d%s %8.4f %9d %9d %9.4f %9.4f %9.4f %9.4f%n",
+                t, t == EmailClassifier.SPAM_THRESHOLD ? "*" : " ", calibration.probability(t),
+                truePositives, falsePositives, precision, recall, f1, falsePositiveRate);
+        }
+        System.out.println("* current threshold");
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Open-addressing table from 64-bit token hashes to per-class counts.
+// Tokens are never stored as Strings, so memory is a few primitive arrays.
+public class TokenCountTable {
+    private static final long EMPTY = 0L;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] spamCounts;
+    private int[] hamCounts;
+    private int mask;
+    private int size;
+    private final int maxSize;
+
+    public TokenCountTable(int initialCapacity, int maxSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+        keys = new long[capacity];
+        spamCounts = new int[capacity];
+        hamCounts = new int[capacity];
+        mask = capacity - 1;
+        this.maxSize = maxSize;
+    }
+
+    private TokenCountTable(ByteBuffer buffer) {
+        size = buffer.getInt();
+        maxSize = buffer.getInt();
+        keys = ModelSnapshot.readLongs(buffer);
+        spamCounts = ModelSnapshot.readInts(buffer);
+        hamCounts = ModelSnapshot.readInts(buffer);
+        mask = keys.length - 1;
+    }
+
+    private TokenCountTable(TokenCountTable source) {
+        keys = source.keys.clone();
+        spamCounts = source.spamCounts.clone();
+        hamCounts = source.hamCounts.clone();
+        mask = source.mask;
+        size = source.size;
+        maxSize = source.maxSize;
+    }
+
+    public TokenCountTable copy() {
+        return new TokenCountTable(this);
+    }
+
+    public static TokenCountTable readFrom(ByteBuffer buffer) {
+        return new TokenCountTable(buffer);
+    }
+
+    // Writes the raw slot arrays so loading needs no rehashing
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(maxSize);
+        ModelSnapshot.writeLongs(out, keys, keys.length);
+        ModelSnapshot.writeInts(out, spamCounts, spamCounts.length);
+        ModelSnapshot.writeInts(out, hamCounts, hamCounts.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    // Returns false when the key is new and the table is already at maxSize
+    public boolean add(long key, int spamDelta, int hamDelta) {
+        key = normalize(key);
+        int slot = slot(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                spamCounts[slot] += spamDelta;
+                hamCounts[slot] += hamDelta;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size >= maxSize) {
+            return false;
+        }
+        keys[slot] = key;
+        spamCounts[slot] = spamDelta;
+        hamCounts[slot] = hamDelta;
+        if (++size > keys.length * LOAD_FACTOR) {
+            grow();
+        }
+        return true;
+    }
+
+    // Slot holding key, or -1 when the token has never been seen
+    public int find(long key) {
+        key = normalize(key);
+        int slot = slot(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean isOccupied(int slot) {
+        return keys[slot] != EMPTY;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int spamCountAt(int slot) {
+        return spamCounts[slot];
+    }
+
+    public int hamCountAt(int slot) {
+        return hamCounts[slot];
+    }
+
+    private static long normalize(long key) {
+        // Zero marks an empty slot
+        return key == EMPTY ? 1L : key;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldSpam = spamCounts;
+        int[] oldHam = hamCounts;
+        int capacity = oldKeys.length * 2;
+        keys = new long[capacity];
+        spamCounts = new int[capacity];
+        hamCounts = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                spamCounts[slot] = oldSpam[i];
+                hamCounts[slot] = oldHam[i];
+            }
+        }
+    }
+
+    public long estimatedBytes() {
+        return (long) keys.length * (Long.BYTES + 2 * Integer.BYTES);
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Interned token vocabulary. Each distinct token gets a dense int ID, and
+// its characters are stored once in a shared byte array: one byte per char
+// while every token is Latin-1, two bytes per char after that, as compact
+// Strings do. Lookups go through an open-addressing table of IDs, so a
+// token costs its characters plus about 20 bytes. A String held in a
+// HashSet costs about 80 bytes on top of its characters. Adding a token
+// that is already present allocates nothing.
+// Not thread-safe; the classifier only touches it from the writer side.
+public final class TokenDictionary implements Iterable<CharSequence> {
+    private static final int EMPTY = -1;
+
+    private byte[] data;
+    private boolean wide;
+    private int charCount;
+    // Token id occupies chars offsets[id] until offsets[id + 1]
+    private int[] offsets;
+    private int[] hashes;
+    private int size;
+
+    private int[] slots;
+    private int mask;
+
+    public TokenDictionary() {
+        this(64);
+    }
+
+    public TokenDictionary(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        offsets = new int[Math.max(16, expectedSize) + 1];
+        hashes = new int[Math.max(16, expectedSize)];
+        data = new byte[Math.max(64, expectedSize * 8)];
+    }
+
+    // Returns the ID of token, adding it if it is new
+    public int add(CharSequence token) {
+        int hash = hash(token);
+        int slot = hash & mask;
+        for (int id; (id = slots[slot]) != EMPTY; slot = (slot + 1) & mask) {
+            if (hashes[id] == hash && equalsAt(id, token)) {
+                return id;
+            }
+        }
+
+        int length = token.length();
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        if (!wide && !isLatin1(token)) {
+            widen();
+        }
+        int needed = (charCount + length) << (wide ? 1 : 0);
+        if (needed > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length + (data.length >> 1), needed));
+        }
+        for (int i = 0; i < length; i++) {
+            put(charCount + i, token.charAt(i));
+        }
+        charCount += length;
+
+        int id = size++;
+        hashes[id] = hash;
+        offsets[id + 1] = charCount;
+        slots[slot] = id;
+        // Keep the table at most half full
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    // ID of token, or -1 if it is not in the dictionary
+    public int find(CharSequence token) {
+        int hash = hash(token);
+        for (int slot = hash & mask, id; (id = slots[slot]) != EMPTY; slot = (slot + 1) & mask) {
+            if (hashes[id] == hash && equalsAt(id, token)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(CharSequence token) {
+        return find(token) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int length(int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    public String get(int id) {
+        char[] value = new char[length(id)];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = charAt(offsets[id] + i);
+        }
+        return new String(value);
+    }
+
+    // Characters of id without copying
+    public CharSequence view(int id) {
+        return new TokenView(id);
+    }
+
+    @Override
+    public Iterator<CharSequence> iterator() {
+        return new Iterator<CharSequence>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public CharSequence next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return view(next++);
+            }
+        };
+    }
+
+    public long estimatedBytes() {
+        return data.length + (long) (offsets.length + hashes.length + slots.length) * Integer.BYTES;
+    }
+
+    private boolean equalsAt(int id, CharSequence token) {
+        int start = offsets[id];
+        int length = offsets[id + 1] - start;
+        if (length != token.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (charAt(start + i) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private char charAt(int position) {
+        if (wide) {
+            return (char) (((data[position << 1] & 0xFF) << 8) | (data[(position << 1) + 1] & 0xFF));
+        }
+        return (char) (data[position] & 0xFF);
+    }
+
+    private void put(int position, char c) {
+        if (wide) {
+            data[position << 1] = (byte) (c >>> 8);
+            data[(position << 1) + 1] = (byte) c;
+        } else {
+            data[position] = (byte) c;
+        }
+    }
+
+    private static boolean isLatin1(CharSequence token) {
+        for (int i = 0, n = token.length(); i < n; i++) {
+            if (token.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Switches to two bytes per char once a token needs it
+    private void widen() {
+        byte[] widened = new byte[Math.max(data.length, 32) * 2];
+        for (int i = 0; i < charCount; i++) {
+            widened[(i << 1) + 1] = data[i];
+        }
+        data = widened;
+        wide = true;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    // String.hashCode() of the token, spread so that the low bits used for
+    // the slot index depend on every character
+    private static int hash(CharSequence token) {
+        int h = 0;
+        for (int i = 0, n = token.length(); i < n; i++) {
+            h = 31 * h + token.charAt(i);
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private final class TokenView implements CharSequence {
+        private final int id;
+
+        TokenView(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int length() {
+            return TokenDictionary.this.length(id);
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+            }
+            return TokenDictionary.this.charAt(offsets[id] + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return get(id);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+import java.util.Arrays;
+
+// Tokens of one text, produced by a single pass over its characters. Two
+// views are recorded at once:
+//  - unigrams: runs of characters between whitespace and ASCII punctuation,
+//    trimmed and lower-cased, as text.split("\\s+|\\p{Punct}") yields them
+//  - words: whitespace-separated words reduced to their a-z letters, as
+//    text.split("\\s+") followed by replaceAll("[^a-z]", "") yields them;
+//    bigrams and trigrams are formed from consecutive words
+// Both views also mark their stop words, by DataPreprocessor's list, so
+// Naive Bayes can leave them out. The SpamPatternScanner flags are
+// collected in the same pass. Tokens are
+// stored as offsets and hashes into the text, so tokenizing allocates
+// nothing once the arrays have grown to fit; an instance is reused for
+// message after message and must not be shared between threads.
+public final class TokenizedText {
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_RETAINED_CAPACITY = 1 << 14;
+
+    private CharSequence text = "";
+    private int flags = SpamPatternScanner.ASCII_ONLY;
+    private boolean tokenized;
+
+    private int unigramCount;
+    private int[] unigramStart = new int[INITIAL_CAPACITY];
+    private int[] unigramEnd = new int[INITIAL_CAPACITY];
+    private long[] unigramHash = new long[INITIAL_CAPACITY];
+    private boolean[] unigramDigit = new boolean[INITIAL_CAPACITY];
+    private boolean[] unigramStopWord = new boolean[INITIAL_CAPACITY];
+
+    private int wordCount;
+    private int[] wordStart = new int[INITIAL_CAPACITY];
+    private int[] wordEnd = new int[INITIAL_CAPACITY];
+    private int[] wordLetters = new int[INITIAL_CAPACITY];
+    private long[] wordHash = new long[INITIAL_CAPACITY];
+    private boolean[] wordStopWord = new boolean[INITIAL_CAPACITY];
+
+    // Only collects the pattern flags; the token views are left empty
+    public TokenizedText scan(CharSequence text) {
+        this.text = text;
+        flags = SpamPatternScanner.scan(text);
+        tokenized = false;
+        unigramCount = 0;
+        wordCount = 0;
+        return this;
+    }
+
+    public TokenizedText tokenize(CharSequence text) {
+        this.text = text;
+        tokenized = true;
+        unigramCount = 0;
+        wordCount = 0;
+
+        int flags = SpamPatternScanner.ASCII_ONLY;
+        char previous = 0;
+
+        // Current unigram; trailing characters <= ' ' are not committed,
+        // which matches String.trim()
+        int unigram = -1;
+        int unigramLimit = 0;
+        long hash = FNV_OFFSET;
+        long committedHash = FNV_OFFSET;
+        // Stop-word codes as DataPreprocessor.stopWordCode() builds them
+        int code = 0;
+        int committedCode = 0;
+        boolean digit = false;
+        boolean lineTerminator = false;
+
+        // Current word
+        int word = -1;
+        int letters = 0;
+        long letterHash = FNV_OFFSET;
+        int letterCode = 0;
+
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            flags = SpamPatternScanner.accumulate(flags, previous, c);
+            previous = c;
+
+            if (isWhitespace(c)) {
+                if (unigram >= 0) {
+                    addUnigram(unigram, unigramLimit, committedHash, digit && !lineTerminator, committedCode);
+                    unigram = -1;
+                }
+                if (word >= 0) {
+                    addWord(word, i, letters, letterHash, letterCode);
+                    word = -1;
+                }
+                continue;
+            }
+
+            char folded = Character.toLowerCase(c);
+            if (word < 0) {
+                if (wordCount == 0 && i > 0) {
+                    // Leading whitespace makes split("\\s+") start with an empty word
+                    addWord(0, 0, 0, FNV_OFFSET, 0);
+                }
+                word = i;
+                letters = 0;
+                letterHash = FNV_OFFSET;
+                letterCode = 0;
+            }
+            if (folded >= 'a' && folded <= 'z') {
+                letterHash = (letterHash ^ folded) * FNV_PRIME;
+                letters++;
+                letterCode = DataPreprocessor.stopWordCode(letterCode, letters, folded);
+            }
+
+            if (isPunctuation(c)) {
+                if (unigram >= 0) {
+                    addUnigram(unigram, unigramLimit, committedHash, digit && !lineTerminator, committedCode);
+                    unigram = -1;
+                }
+                continue;
+            }
+            if (unigram < 0) {
+                if (c <= ' ') {
+                    continue;
+                }
+                unigram = i;
+                hash = FNV_OFFSET;
+                code = 0;
+                digit = false;
+                lineTerminator = false;
+            }
+            hash = (hash ^ folded) * FNV_PRIME;
+            code = DataPreprocessor.stopWordCode(code, i + 1 - unigram, folded);
+            if (c > ' ') {
+                committedHash = hash;
+                committedCode = code;
+                unigramLimit = i + 1;
+            }
+            if (c >= '0' && c <= '9') {
+                digit = true;
+            } else if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                lineTerminator = true;
+            }
+        }
+        if (unigram >= 0) {
+            addUnigram(unigram, unigramLimit, committedHash, digit && !lineTerminator, committedCode);
+        }
+        if (word >= 0) {
+            addWord(word, n, letters, letterHash, letterCode);
+        }
+        this.flags = flags;
+        return this;
+    }
+
+    public CharSequence text() {
+        return text;
+    }
+
+    // SpamPatternScanner flags of the text
+    public int flags() {
+        return flags;
+    }
+
+    public boolean isTokenized() {
+        return tokenized;
+    }
+
+    public int unigramCount() {
+        return unigramCount;
+    }
+
+    public int unigramLength(int index) {
+        return unigramEnd[index] - unigramStart[index];
+    }
+
+    // FNV-1a hash of the lower-cased unigram
+    public long unigramHash(int index) {
+        return unigramHash[index];
+    }
+
+    // Same as unigram(index).matches(".*\\d.*")
+    public boolean unigramHasDigit(int index) {
+        return unigramDigit[index];
+    }
+
+    // Whether the lower-cased unigram is one of DataPreprocessor's stop words
+    public boolean unigramIsStopWord(int index) {
+        return unigramStopWord[index];
+    }
+
+    public String unigram(int index) {
+        return appendUnigram(index, new StringBuilder(unigramLength(index))).toString();
+    }
+
+    public StringBuilder appendUnigram(int index, StringBuilder sb) {
+        for (int i = unigramStart[index]; i < unigramEnd[index]; i++) {
+            sb.append(Character.toLowerCase(text.charAt(i)));
+        }
+        return sb;
+    }
+
+    // Number of whitespace-separated words, including words without letters
+    public int wordCount() {
+        return wordCount;
+    }
+
+    public int wordLength(int index) {
+        return wordLetters[index];
+    }
+
+    // Whether the word's letters form one of DataPreprocessor's stop words
+    public boolean wordIsStopWord(int index) {
+        return wordStopWord[index];
+    }
+
+    // The n words starting at first, joined by single spaces; words without
+    // letters are skipped, as trimming the replaceAll result would do
+    public String ngram(int first, int n) {
+        return appendNgram(first, n, new StringBuilder(ngramLength(first, n))).toString();
+    }
+
+    public StringBuilder appendNgram(int first, int n, StringBuilder sb) {
+        int start = sb.length();
+        for (int w = first; w < first + n; w++) {
+            if (wordLetters[w] == 0) {
+                continue;
+            }
+            if (sb.length() > start) {
+                sb.append(' ');
+            }
+            for (int i = wordStart[w]; i < wordEnd[w]; i++) {
+                char folded = Character.toLowerCase(text.charAt(i));
+                if (folded >= 'a' && folded <= 'z') {
+                    sb.append(folded);
+                }
+            }
+        }
+        return sb;
+    }
+
+    public int ngramLength(int first, int n) {
+        int length = 0;
+        int words = 0;
+        for (int w = first; w < first + n; w++) {
+            if (wordLetters[w] > 0) {
+                length += wordLetters[w];
+                words++;
+            }
+        }
+        return words == 0 ? 0 : length + words - 1;
+    }
+
+    // Hash of ngram(first, n); consistent across calls but not an FNV-1a
+    // hash of the joined string
+    public long ngramHash(int first, int n) {
+        long hash = FNV_OFFSET;
+        for (int w = first; w < first + n; w++) {
+            if (wordLetters[w] > 0) {
+                hash = (Long.rotateLeft(hash, 27) ^ wordHash[w]) * 0x9E3779B97F4A7C15L;
+            }
+        }
+        return hash;
+    }
+
+    // Hash of the two words first and second, both with letters, as a
+    // bigram; equals ngramHash(first, 2) when second follows first
+    public long pairHash(int first, int second) {
+        long hash = (Long.rotateLeft(FNV_OFFSET, 27) ^ wordHash[first]) * 0x9E3779B97F4A7C15L;
+        return (Long.rotateLeft(hash, 27) ^ wordHash[second]) * 0x9E3779B97F4A7C15L;
+    }
+
+    // Drops the reference to the text and shrinks arrays grown by an
+    // unusually long message, so a cached instance does not pin them
+    void release() {
+        text = "";
+        if (unigramStart.length > MAX_RETAINED_CAPACITY) {
+            unigramStart = new int[INITIAL_CAPACITY];
+            unigramEnd = new int[INITIAL_CAPACITY];
+            unigramHash = new long[INITIAL_CAPACITY];
+            unigramDigit = new boolean[INITIAL_CAPACITY];
+            unigramStopWord = new boolean[INITIAL_CAPACITY];
+        }
+        if (wordStart.length > MAX_RETAINED_CAPACITY) {
+            wordStart = new int[INITIAL_CAPACITY];
+            wordEnd = new int[INITIAL_CAPACITY];
+            wordLetters = new int[INITIAL_CAPACITY];
+            wordHash = new long[INITIAL_CAPACITY];
+            wordStopWord = new boolean[INITIAL_CAPACITY];
+        }
+        unigramCount = 0;
+        wordCount = 0;
+    }
+
+    private void addUnigram(int start, int end, long hash, boolean digit, int code) {
+        if (unigramCount == unigramStart.length) {
+            int capacity = unigramCount * 2;
+            unigramStart = Arrays.copyOf(unigramStart, capacity);
+            unigramEnd = Arrays.copyOf(unigramEnd, capacity);
+            unigramHash = Arrays.copyOf(unigramHash, capacity);
+            unigramDigit = Arrays.copyOf(unigramDigit, capacity);
+            unigramStopWord = Arrays.copyOf(unigramStopWord, capacity);
+        }
+        unigramStart[unigramCount] = start;
+        unigramEnd[unigramCount] = end;
+        unigramHash[unigramCount] = hash;
+        unigramDigit[unigramCount] = digit;
+        unigramStopWord[unigramCount] = DataPreprocessor.isStopWord(code, end - start);
+        unigramCount++;
+    }
+
+    private void addWord(int start, int end, int letters, long hash, int code) {
+        if (wordCount == wordStart.length) {
+            int capacity = wordCount * 2;
+            wordStart = Arrays.copyOf(wordStart, capacity);
+            wordEnd = Arrays.copyOf(wordEnd, capacity);
+            wordLetters = Arrays.copyOf(wordLetters, capacity);
+            wordHash = Arrays.copyOf(wordHash, capacity);
+            wordStopWord = Arrays.copyOf(wordStopWord, capacity);
+        }
+        wordStart[wordCount] = start;
+        wordEnd[wordCount] = end;
+        wordLetters[wordCount] = letters;
+        wordHash[wordCount] = hash;
+        wordStopWord[wordCount] = DataPreprocessor.isStopWord(code, letters);
+        wordCount++;
+    }
+
+    // The characters matched by the regex \s
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    // The characters matched by the regex \p{Punct}
+    private static boolean isPunctuation(char c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@')
+            || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+// What training learns from a run of labelled rows: the spam keyword and
+// subject phrase vocabularies in first-seen order, a partial Naive Bayes
+// model and the sender reputation. Partials of consecutive shards of a
+// file, or of files trained on other machines, combine with merge().
+// a.merge(b) equals training on a's rows followed by b's, and merging is
+// associative, so any merge tree over shards in file order gives the same
+// model as one sequential pass. The Naive Bayes part holds to this unless
+// a partial after the first reached the token cap; see
+// NaiveBayesModel.partial().
+//
+// Partial file layout (big-endian):
+//   magic "SPAMPART", int version, keyword strings, subject phrase strings,
+//   partial Naive Bayes statistics, sender reputation
+public final class TrainingPartial {
+    // Version 2: sender reputation
+    // Version 3: Naive Bayes stop-word setting
+    public static final int VERSION = 3;
+
+    private static final byte[] MAGIC = "SPAMPART".getBytes(StandardCharsets.US_ASCII);
+
+    private final TokenDictionary keywords = new TokenDictionary();
+    private final TokenDictionary subjectPhrases = new TokenDictionary();
+    private final NaiveBayesModel bayesModel;
+    private final SenderReputation reputation;
+
+    // Time spent per training stage, summed over merged partials
+    private long parseNanos;
+    private long bayesNanos;
+    private long extractNanos;
+
+    public TrainingPartial() {
+        this(NaiveBayesModel.partial(NaiveBayesModel.DEFAULT_MAX_TOKENS), new SenderReputation());
+    }
+
+    // An empty partial whose Naive Bayes part only counts the features
+    // trained already holds, for recounting when trained's merge dropped
+    // features
+    public static TrainingPartial restrictedTo(TrainingPartial trained) {
+        return new TrainingPartial(NaiveBayesModel.restrictedTo(trained.bayesModel), new SenderReputation());
+    }
+
+    private TrainingPartial(NaiveBayesModel bayesModel, SenderReputation reputation) {
+        this.bayesModel = bayesModel;
+        this.reputation = reputation;
+    }
+
+    public TokenDictionary keywords() {
+        return keywords;
+    }
+
+    public TokenDictionary subjectPhrases() {
+        return subjectPhrases;
+    }
+
+    public NaiveBayesModel bayesModel() {
+        return bayesModel;
+    }
+
+    public SenderReputation reputation() {
+        return reputation;
+    }
+
+    public int spamRows() {
+        return bayesModel.spamMessages();
+    }
+
+    public int hamRows() {
+        return bayesModel.hamMessages();
+    }
+
+    public long parseNanos() {
+        return parseNanos;
+    }
+
+    public long bayesNanos() {
+        return bayesNanos;
+    }
+
+    public long extractNanos() {
+        return extractNanos;
+    }
+
+    // Trains on every body,sender,subject,class record left in reader
+    public TrainingPartial addRows(CsvReader reader) throws IOException {
+        addRows(reader, new TrainingPartial[] {this}, row -> 0);
+        return this;
+    }
+
+    // Trains each record left in reader into partials[partition(reader)],
+    // e.g. one partial per cross-validation fold from a single pass
+    public static void addRows(CsvReader reader, TrainingPartial[] partials, ToIntFunction<CsvReader> partition)
+            throws IOException {
+        // Each row is tokenized once for both Naive Bayes and keyword extraction
+        MessageFeatures features = new MessageFeatures();
+        StringBuilder token = new StringBuilder();
+        long mark = System.nanoTime();
+
+        while (reader.nextRecord()) {
+            // Columns: body,sender,subject,class
+            if (reader.fieldCount() >= 4) {
+                TrainingPartial partial = partials[partition.applyAsInt(reader)];
+                String body = reader.fieldAsString(0).toLowerCase();
+                String subject = reader.fieldAsString(2).toLowerCase();
+                boolean isSpam = reader.fieldEquals(3, "spam");
+                long parsed = System.nanoTime();
+                partial.parseNanos += parsed - mark;
+
+                features.extract(subject, body, true);
+                partial.bayesModel.train(features, isSpam);
+                partial.reputation.add(reader.field(1), isSpam);
+                long trained = System.nanoTime();
+                partial.bayesNanos += trained - parsed;
+
+                if (isSpam) {
+                    // Extract potential keywords from spam emails
+                    EmailClassifier.extractKeywords(features.body(), 3, partial.keywords, token);
+
+                    // Extract subject phrases
+                    EmailClassifier.extractSubjectPhrases(subject, features.subject(), partial.subjectPhrases, token);
+                }
+                mark = System.nanoTime();
+                partial.extractNanos += mark - trained;
+            } else {
+                long now = System.nanoTime();
+                partials[0].parseNanos += now - mark;
+                mark = now;
+            }
+        }
+        partials[0].parseNanos += System.nanoTime() - mark;
+    }
+
+    // Appends other's vocabulary and statistics as if its rows followed ours
+    public TrainingPartial merge(TrainingPartial other) {
+        for (CharSequence keyword : other.keywords) {
+            keywords.add(keyword);
+        }
+        for (CharSequence phrase : other.subjectPhrases) {
+            subjectPhrases.add(phrase);
+        }
+        bayesModel.merge(other.bayesModel);
+        reputation.merge(other.reputation);
+        parseNanos += other.parseNanos;
+        bayesNanos += other.bayesNanos;
+        extractNanos += other.extractNanos;
+        return this;
+    }
+
+    public void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            ModelSnapshot.writeStrings(out, keywords);
+            ModelSnapshot.writeStrings(out, subjectPhrases);
+            bayesModel.writePartialTo(out);
+            reputation.writeTo(out);
+        }
+    }
+
+    public static TrainingPartial read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            if (buffer.remaining() < MAGIC.length + Integer.BYTES) {
+                throw new IOException("Partial file is truncated: " + path);
+            }
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a training partial: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported partial version " + version + " (expected " + VERSION + ")");
+            }
+            try {
+                ByteBuffer keywordSection = ModelSnapshot.skipStrings(buffer);
+                ByteBuffer phraseSection = ModelSnapshot.skipStrings(buffer);
+                NaiveBayesModel bayesModel = NaiveBayesModel.readPartialFrom(buffer);
+                TrainingPartial partial = new TrainingPartial(bayesModel, SenderReputation.readFrom(buffer));
+                ModelSnapshot.readStrings(keywordSection, partial.keywords);
+                ModelSnapshot.readStrings(phraseSection, partial.subjectPhrases);
+                return partial;
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt training partial " + path + ": " + e, e);
+            }
+        }
+    }
+}